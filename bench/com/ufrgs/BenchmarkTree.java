@@ -0,0 +1,94 @@
+package com.ufrgs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Revision files of a synthetic tree for the benchmarks. Every later revision changes the weight
+// of a tenth of the files, deletes a hundredth and adds as many new ones, spread over the tree
+// like the first ones, so laying it out inserts and removes items.
+//   flat      all files in a single directory
+//   deep      a chain of DEPTH nested directories with the files spread along it
+//   balanced  directories with FAN_OUT subdirectories each, about FAN_OUT files per leaf directory
+public class BenchmarkTree {
+
+    private static final int DEPTH = 64;
+    private static final int FAN_OUT = 10;
+    private static final int CHURN = 100; // One file in CHURN is replaced per revision
+
+    public static String[] SHAPES = {"flat", "deep", "balanced"};
+
+    public static void write(String shape, int size, int numberOfRevisions, File directory) throws IOException {
+
+        directory.mkdirs();
+        Random random = new Random(size);
+        // Live files, a deleted file's slot is taken by a new one
+        List<String> ids = new ArrayList<>(size);
+        int[] weights = new int[size];
+        for (int i = 0; i < size; ++i) {
+            ids.add(getPath(shape, i, size) + "f" + i + ".c");
+            weights[i] = 1 + random.nextInt(1000);
+        }
+
+        int nextFile = size;
+        for (int revision = 0; revision < numberOfRevisions; ++revision) {
+            File file = new File(directory, "r" + revision + ".csv");
+            try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+                writer.write("id,weight\n");
+                for (int i = 0; i < size; ++i) {
+                    writer.write(ids.get(i));
+                    writer.write(',');
+                    writer.write(Integer.toString(weights[i]));
+                    writer.write('\n');
+                }
+            }
+            // A tenth of the files change weight in the next revision
+            for (int i = 0; i < size / 10; ++i) {
+                int changed = random.nextInt(size);
+                weights[changed] = Math.max(1, weights[changed] + random.nextInt(201) - 100);
+            }
+            // and a few are replaced by a new file in the directory of a random slot
+            for (int i = 0; i < Math.max(1, size / CHURN); ++i) {
+                int replaced = random.nextInt(size);
+                ids.set(replaced, getPath(shape, random.nextInt(size), size) + "f" + (nextFile++) + ".c");
+                weights[replaced] = 1 + random.nextInt(1000);
+            }
+        }
+    }
+
+    // Directory of the i-th file, ending with '/'
+    private static String getPath(String shape, int i, int size) {
+        StringBuilder path = new StringBuilder();
+        switch (shape) {
+            case "flat":
+                path.append("flat/");
+                break;
+            case "deep":
+                int level = (int) ((long) i * DEPTH / size);
+                for (int d = 0; d <= level; ++d) {
+                    path.append('d').append(d).append('/');
+                }
+                break;
+            case "balanced":
+                int leaves = Math.max(1, size / FAN_OUT);
+                int depth = 0;
+                for (int capacity = 1; capacity < leaves; capacity *= FAN_OUT) {
+                    depth++;
+                }
+                int leaf = i % leaves;
+                for (int d = 0; d < depth; ++d) {
+                    path.append('b').append(leaf % FAN_OUT).append('/');
+                    leaf /= FAN_OUT;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown tree shape " + shape);
+        }
+        return path.toString();
+    }
+}
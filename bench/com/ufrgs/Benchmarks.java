@@ -0,0 +1,325 @@
+package com.ufrgs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Times the phases of a run over synthetic trees (see BenchmarkTree): revision file parsing,
+// hierarchy building with its weight sums, the initial squarified layout, the layout of the
+// following revisions with their insertions and removals, one at a time or batched, and .rect
+// serialization. As in JMH, every benchmark runs repeatedly for a
+// fixed time per iteration, warmup iterations first, and the time per run is reported. Each
+// benchmark and data set gets fresh JVMs (--forks), with the JVM options of this one, so JIT
+// profiles and heap state of one benchmark don't leak into the next.
+//
+// Build and run from the project root, after compiling src to out/production/squarified-git:
+// javac -cp out/production/squarified-git -d out/production/squarified-bench $(find bench -name '*.java')
+// java -Xmx8g -cp out/production/squarified-git:out/production/squarified-bench com.ufrgs.Benchmarks [options]
+public class Benchmarks {
+
+    private static final String[] BENCHMARKS = {"parse", "hierarchy", "squarify", "layout", "layout-batched", "serialize"};
+    private static final int NUMBER_OF_REVISIONS = 3;
+    // Only the first revision is laid out by a TreemapManager
+    private static final LayoutOptions OPTIONS = new LayoutOptions().setLastRevision(0);
+
+    private static List<String> benchmarks = Arrays.asList(BENCHMARKS);
+    private static List<String> shapes = Arrays.asList(BenchmarkTree.SHAPES);
+    private static List<Integer> sizes = Arrays.asList(1000, 10000, 100000, 1000000);
+    private static int warmupIterations = 3;
+    private static int iterations = 5;
+    private static int iterationTime = 500; // Milliseconds
+    private static int forks = 1;
+    private static String forkData; // Set in a forked JVM, which measures one benchmark on it
+
+    // Results are stored here so the JIT can not drop the work that produced them
+    static volatile Object blackhole;
+
+    // One benchmark over one data set. setUp runs the phases before the measured one, setUpRun
+    // before every run, untimed, for benchmarks that consume their input.
+    private interface Benchmark {
+        void setUp(File data) throws IOException;
+
+        default void setUpRun() throws IOException {
+        }
+
+        Object run() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (!parseOptions(args)) {
+            argsError();
+            return;
+        }
+
+        if (forkData != null) {
+            double[] times = measure(create(benchmarks.get(0)), new File(forkData));
+            StringBuilder line = new StringBuilder("times");
+            for (double time : times) {
+                line.append(' ').append(time);
+            }
+            System.out.println(line);
+            return;
+        }
+
+        File root = Files.createTempDirectory("treemap-bench").toFile();
+        System.out.println(String.format(Locale.ROOT, "%-14s %-9s %8s %12s %10s %12s",
+                "Benchmark", "Shape", "Size", "Mean ms/op", "Stddev", "Min ms/op"));
+        try {
+            for (String shape : shapes) {
+                for (int size : sizes) {
+                    File data = new File(root, shape + size);
+                    BenchmarkTree.write(shape, size, NUMBER_OF_REVISIONS, data);
+                    for (String name : benchmarks) {
+                        report(name, shape, size, forks > 0 ? fork(name, data) : measure(create(name), data));
+                    }
+                    deleteRecursively(data);
+                }
+            }
+        } finally {
+            deleteRecursively(root);
+        }
+    }
+
+    private static Benchmark create(String name) {
+        switch (name) {
+            case "parse":
+                return new Benchmark() {
+                    File data;
+
+                    public void setUp(File data) {
+                        this.data = data;
+                    }
+
+                    public Object run() throws IOException {
+                        return new Parser(OPTIONS).parseCSVs(data.getPath());
+                    }
+                };
+            case "hierarchy":
+                return new Benchmark() {
+                    File data;
+                    Parser parser;
+                    List<Entity> entityList;
+
+                    public void setUp(File data) {
+                        this.data = data;
+                    }
+
+                    // Building the hierarchy adds children and weight rows, so every run starts
+                    // from a new parse
+                    public void setUpRun() throws IOException {
+                        parser = new Parser(OPTIONS);
+                        entityList = parser.parseCSVs(data.getPath());
+                    }
+
+                    public Object run() {
+                        return parser.buildHierarchy(entityList);
+                    }
+                };
+            case "squarify":
+                return new Benchmark() {
+                    Entity root;
+
+                    public void setUp(File data) throws IOException {
+                        root = new Parser(OPTIONS).buildHierarchy(data.getPath());
+                    }
+
+                    public Object run() {
+                        TreemapManager manager = new TreemapManager(root, new Rectangle(1000, 800), OPTIONS);
+                        manager.next();
+                        return manager.getRootTreemap();
+                    }
+                };
+            case "layout":
+            case "layout-batched":
+                return new Benchmark() {
+                    LayoutOptions options = new LayoutOptions().setBatchedInsertion(name.equals("layout-batched"));
+                    Entity root;
+                    TreemapManager manager;
+
+                    public void setUp(File data) throws IOException {
+                        root = new Parser(options).buildHierarchy(data.getPath());
+                    }
+
+                    // Insertions change the treemaps, so every run starts from a new initial layout
+                    public void setUpRun() {
+                        manager = new TreemapManager(root, new Rectangle(1000, 800), options);
+                        manager.next();
+                    }
+
+                    // Every revision after the first, each one with its snapshot
+                    public Object run() {
+                        Object snapshot = null;
+                        while (manager.hasNext()) {
+                            snapshot = manager.next();
+                        }
+                        return snapshot;
+                    }
+                };
+            case "serialize":
+                return new Benchmark() {
+                    RectangleSnapshot snapshot;
+                    RectangleSerializer serializer = new RectangleSerializer();
+
+                    public void setUp(File data) throws IOException {
+                        Entity root = new Parser(OPTIONS).buildHierarchy(data.getPath());
+                        snapshot = new TreemapManager(root, new Rectangle(1000, 800), OPTIONS).next();
+                    }
+
+                    public Object run() {
+                        serializer.serialize(snapshot);
+                        return serializer.getBuffer();
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Unknown benchmark " + name);
+        }
+    }
+
+    // Mean milliseconds per run of every measured iteration
+    private static double[] measure(Benchmark benchmark, File data) throws IOException {
+
+        benchmark.setUp(data);
+        for (int i = 0; i < warmupIterations; ++i) {
+            iterate(benchmark);
+        }
+
+        double[] times = new double[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            System.gc();
+            times[i] = iterate(benchmark);
+        }
+        return times;
+    }
+
+    // Measures the benchmark in new JVMs, one after another, and returns the iterations of all
+    private static double[] fork(String name, File data) throws IOException {
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), Benchmarks.class.getName(),
+                "--benchmark=" + name, "--warmup=" + warmupIterations, "--iterations=" + iterations,
+                "--time=" + iterationTime, "--fork-data=" + data.getPath()));
+
+        double[] times = new double[0];
+        for (int i = 0; i < forks; ++i) {
+            Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("times ")) {
+                        double[] forkTimes = Arrays.stream(line.substring("times ".length()).split(" ")).mapToDouble(Double::parseDouble).toArray();
+                        int previous = times.length;
+                        times = Arrays.copyOf(times, previous + forkTimes.length);
+                        System.arraycopy(forkTimes, 0, times, previous, forkTimes.length);
+                    } else {
+                        System.out.println(line);
+                    }
+                }
+            }
+            try {
+                if (process.waitFor() != 0) {
+                    throw new IOException("Forked JVM of " + name + " exited with " + process.exitValue());
+                }
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + name, e);
+            }
+        }
+        return times;
+    }
+
+    private static void report(String name, String shape, int size, double[] times) {
+        double mean = Arrays.stream(times).average().orElse(0);
+        double variance = Arrays.stream(times).map(time -> (time - mean) * (time - mean)).sum() / Math.max(1, times.length - 1);
+        System.out.println(String.format(Locale.ROOT, "%-14s %-9s %8d %12.3f %10.3f %12.3f",
+                name, shape, size, mean, Math.sqrt(variance), Arrays.stream(times).min().orElse(0)));
+    }
+
+    // Runs the benchmark for at least the iteration time and returns the mean milliseconds per
+    // run, without the per-run setup
+    private static double iterate(Benchmark benchmark) throws IOException {
+        long start = System.nanoTime(), measured = 0;
+        int runs = 0;
+        do {
+            benchmark.setUpRun();
+            long runStart = System.nanoTime();
+            blackhole = benchmark.run();
+            measured += System.nanoTime() - runStart;
+            runs++;
+        } while (System.nanoTime() - start < iterationTime * 1_000_000L);
+        blackhole = null;
+        return measured / 1e6 / runs;
+    }
+
+    private static boolean parseOptions(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--benchmark=")) {
+                benchmarks = Arrays.asList(arg.substring("--benchmark=".length()).split(","));
+                if (!Arrays.asList(BENCHMARKS).containsAll(benchmarks)) {
+                    return false;
+                }
+            } else if (arg.startsWith("--shape=")) {
+                shapes = Arrays.asList(arg.substring("--shape=".length()).split(","));
+                if (!Arrays.asList(BenchmarkTree.SHAPES).containsAll(shapes)) {
+                    return false;
+                }
+            } else if (arg.startsWith("--size=")) {
+                sizes = new ArrayList<>();
+                for (String size : arg.substring("--size=".length()).split(",")) {
+                    sizes.add(Integer.valueOf(size));
+                }
+            } else if (arg.startsWith("--warmup=")) {
+                warmupIterations = Integer.valueOf(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--time=")) {
+                iterationTime = Integer.valueOf(arg.substring("--time=".length()));
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Integer.valueOf(arg.substring("--iterations=".length()));
+            } else if (arg.startsWith("--forks=")) {
+                forks = Integer.valueOf(arg.substring("--forks=".length()));
+            } else if (arg.startsWith("--fork-data=")) {
+                forkData = arg.substring("--fork-data=".length());
+            } else {
+                System.out.println("Unknown option " + arg);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void argsError() {
+        System.out.println("Usage: \njava -cp <classes> com.ufrgs.Benchmarks [options]");
+        System.out.println("Options:");
+        System.out.println("  --benchmark=a,b,...     parse, hierarchy, squarify, layout, layout-batched, serialize");
+        System.out.println("                          (default all)");
+        System.out.println("  --shape=a,b,...         flat, deep, balanced (default all)");
+        System.out.println("  --size=n,m,...          Number of files (default 1000,10000,100000,1000000)");
+        System.out.println("  --warmup=N              Warmup iterations (default 3)");
+        System.out.println("  --iterations=N          Measured iterations (default 5)");
+        System.out.println("  --time=MS               Minimum time of an iteration, the benchmark runs as often as it fits");
+        System.out.println("                          and the mean time per run is reported (default 500)");
+        System.out.println("  --forks=N               JVMs started for every benchmark and data set, their iterations are");
+        System.out.println("                          reported together. 0 runs everything in this JVM (default 1)");
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,367 @@
+package com.ufrgs;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+// Writes a synthetic repository history as revision files in the id,weight format of Parser,
+// one r<revision>.csv per commit. The same seed and options always give the same files.
+//  - Files land next to existing files, so busy directories grow faster and paths get deep
+//  - File sizes and commit sizes follow power laws, most commits touch a few files
+//  - Some commits import a whole new subtree, delete a directory or rename one
+// Only the live repository is kept in memory, every revision is streamed to disk as it is made,
+// so long histories of large repositories can be written in constant memory.
+//
+// java -cp <classes> com.ufrgs.HistoryGenerator output_dir [options]
+public class HistoryGenerator {
+
+    private static final String[] DIRECTORY_NAMES = {"src", "lib", "core", "util", "api", "impl", "model", "io",
+            "net", "ui", "test", "docs", "config", "internal", "common", "server", "client", "data", "tools", "plugins"};
+    private static final String[] EXTENSIONS = {".java", ".c", ".h", ".py", ".js", ".md", ".xml", ".txt"};
+
+    private static final double NEW_DIRECTORY_PROBABILITY = 0.1;
+    private static final double IMPORT_PROBABILITY = 0.01;
+    private static final double DELETE_DIRECTORY_PROBABILITY = 0.005;
+    private static final double RENAME_PROBABILITY = 0.005;
+    private static final double ADD_PROBABILITY = 0.25, DELETE_PROBABILITY = 0.08; // Otherwise a file is modified
+    private static final double SIZE_EXPONENT = 1.2; // Pareto tail of file sizes
+    private static final double COMMIT_EXPONENT = 1.5; // Pareto tail of files touched by a commit
+    private static final int MAX_FILE_SIZE = 1_000_000;
+
+    private static long seed = 1;
+    private static int numberOfRevisions = 2000;
+    private static int numberOfInitialFiles = 1000;
+    private static int maxDirectoryDepth = 20;
+
+    private final Random random;
+    private final int initialFiles;
+    private final int maxDepth;
+    private final Directory root = new Directory(null, "");
+    private final List<FileEntry> files = new ArrayList<>();
+    private int nameCounter = 0;
+    private byte[] line = new byte[256];
+
+    private static class Directory {
+        final Directory parent;
+        final List<Directory> children = new ArrayList<>();
+        final List<FileEntry> files = new ArrayList<>();
+        final int depth;
+        String name;
+        byte[] path; // UTF-8, ending with '/' except for the root
+
+        Directory(Directory parent, String name) {
+            this.parent = parent;
+            this.name = name;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+            updatePath();
+        }
+
+        void updatePath() {
+            path = parent == null ? new byte[0] : (new String(parent.path, StandardCharsets.UTF_8) + name + "/").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class FileEntry {
+        Directory directory;
+        byte[] name;
+        int weight;
+        int index; // In HistoryGenerator.files
+        int directoryIndex; // In directory.files
+    }
+
+    public HistoryGenerator(long seed) {
+        this(seed, 1000, 20);
+    }
+
+    // Files in the first revision and deepest directory level
+    public HistoryGenerator(long seed, int initialFiles, int maxDepth) {
+        this.random = new Random(seed);
+        this.initialFiles = initialFiles;
+        this.maxDepth = maxDepth;
+    }
+
+    public static void main(String[] args) {
+
+        if (args.length < 1 || !parseOptions(args)) {
+            argsError();
+            System.exit(-1);
+        }
+
+        File directory = new File(args[0]);
+        directory.mkdirs();
+        try {
+            long bytes = new HistoryGenerator(seed, numberOfInitialFiles, maxDirectoryDepth).write(directory, numberOfRevisions);
+            System.out.println(String.format("%d revisions, %.1f MB in %s", numberOfRevisions, bytes / 1e6, directory));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    // Generates the history and returns the number of bytes written
+    public long write(File directory, int numberOfRevisions) throws IOException {
+
+        for (int i = 0; i < initialFiles; ++i) {
+            addFile(pickDirectory(), paretoSize());
+        }
+
+        // Same width for every name, so Parser's (length, name) order is the revision order
+        String format = "r%0" + Integer.toString(Math.max(1, numberOfRevisions - 1)).length() + "d.csv";
+        long bytes = 0;
+        for (int revision = 0; revision < numberOfRevisions; ++revision) {
+            if (revision > 0) {
+                commit();
+            }
+            bytes += writeRevision(new File(directory, String.format(format, revision)));
+        }
+        return bytes;
+    }
+
+    private void commit() {
+
+        double event = random.nextDouble();
+        if (files.isEmpty() || event < IMPORT_PROBABILITY) {
+            importSubtree();
+        } else if (event < IMPORT_PROBABILITY + DELETE_DIRECTORY_PROBABILITY) {
+            deleteDirectory(pickAncestor(files.get(random.nextInt(files.size())).directory));
+        } else if (event < IMPORT_PROBABILITY + DELETE_DIRECTORY_PROBABILITY + RENAME_PROBABILITY) {
+            renameDirectory(pickAncestor(files.get(random.nextInt(files.size())).directory));
+        }
+
+        int changes = (int) Math.min(pareto(1, COMMIT_EXPONENT), 1000);
+        for (int i = 0; i < changes; ++i) {
+            double change = random.nextDouble();
+            if (files.isEmpty() || change < ADD_PROBABILITY) {
+                addFile(pickDirectory(), paretoSize());
+            } else if (change < ADD_PROBABILITY + DELETE_PROBABILITY) {
+                deleteFile(files.get(random.nextInt(files.size())));
+            } else {
+                FileEntry file = files.get(random.nextInt(files.size()));
+                // Edits are mostly small compared to the file
+                int delta = (int) Math.round(random.nextGaussian() * (2 + 0.05 * file.weight));
+                file.weight = Math.max(1, Math.min(MAX_FILE_SIZE, file.weight + delta));
+            }
+        }
+    }
+
+    // A new subtree with a few directories, as when a library is vendored
+    private void importSubtree() {
+        Directory parent = files.isEmpty() ? root : pickAncestor(files.get(random.nextInt(files.size())).directory);
+        if (parent.depth >= maxDepth) {
+            parent = root;
+        }
+        // Imports often bring a package chain like com/vendor/project along
+        Directory top = newDirectory(parent);
+        for (int levels = random.nextInt(4); levels > 0 && top.depth < maxDepth; --levels) {
+            top = newDirectory(top);
+        }
+        List<Directory> directories = new ArrayList<>();
+        directories.add(top);
+        int numberOfFiles = (int) Math.min(pareto(20, COMMIT_EXPONENT), 5000);
+        for (int i = 0; i < numberOfFiles; ++i) {
+            Directory directory = directories.get(random.nextInt(directories.size()));
+            if (random.nextDouble() < NEW_DIRECTORY_PROBABILITY && directory.depth < maxDepth) {
+                directory = newDirectory(directory);
+                directories.add(directory);
+            }
+            addFile(directory, paretoSize());
+        }
+    }
+
+    // Directory of a random file, so directories are picked in proportion to their files, and
+    // sometimes a new subdirectory of it
+    private Directory pickDirectory() {
+        Directory directory = files.isEmpty() ? root : files.get(random.nextInt(files.size())).directory;
+        if (random.nextDouble() < NEW_DIRECTORY_PROBABILITY && directory.depth < maxDepth) {
+            directory = newDirectory(directory);
+        }
+        return directory;
+    }
+
+    // The directory itself or one of its ancestors, never the root
+    private Directory pickAncestor(Directory directory) {
+        if (directory == root) {
+            return root;
+        }
+        int steps = random.nextInt(directory.depth);
+        for (int i = 0; i < steps; ++i) {
+            directory = directory.parent;
+        }
+        return directory;
+    }
+
+    private Directory newDirectory(Directory parent) {
+        Directory directory = new Directory(parent, uniqueName(parent));
+        parent.children.add(directory);
+        return directory;
+    }
+
+    private String uniqueName(Directory parent) {
+        String name = DIRECTORY_NAMES[random.nextInt(DIRECTORY_NAMES.length)];
+        for (Directory sibling : parent.children) {
+            if (sibling.name.equals(name)) {
+                return name + (nameCounter++);
+            }
+        }
+        return name;
+    }
+
+    private void addFile(Directory directory, int weight) {
+        FileEntry file = new FileEntry();
+        String extension = EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+        file.name = ("f" + (nameCounter++) + extension).getBytes(StandardCharsets.UTF_8);
+        file.directory = directory;
+        file.weight = weight;
+        file.index = files.size();
+        files.add(file);
+        file.directoryIndex = directory.files.size();
+        directory.files.add(file);
+    }
+
+    // Swaps the last file into the freed slot of both lists
+    private void deleteFile(FileEntry file) {
+        FileEntry last = files.remove(files.size() - 1);
+        if (last != file) {
+            files.set(file.index, last);
+            last.index = file.index;
+        }
+        List<FileEntry> siblings = file.directory.files;
+        last = siblings.remove(siblings.size() - 1);
+        if (last != file) {
+            siblings.set(file.directoryIndex, last);
+            last.directoryIndex = file.directoryIndex;
+        }
+    }
+
+    private void deleteDirectory(Directory directory) {
+        if (directory == root) {
+            return;
+        }
+        // A commit removes at most half of the repository
+        if (countFiles(directory) > files.size() / 2) {
+            return;
+        }
+        Deque<Directory> stack = new ArrayDeque<>();
+        stack.push(directory);
+        while (!stack.isEmpty()) {
+            Directory current = stack.pop();
+            while (!current.files.isEmpty()) {
+                deleteFile(current.files.get(current.files.size() - 1));
+            }
+            for (Directory child : current.children) {
+                stack.push(child);
+            }
+        }
+        directory.parent.children.remove(directory);
+    }
+
+    // Every file below the directory gets a new id, as git sees a rename
+    private void renameDirectory(Directory directory) {
+        if (directory == root) {
+            return;
+        }
+        directory.name = uniqueName(directory.parent);
+        Deque<Directory> stack = new ArrayDeque<>();
+        stack.push(directory);
+        while (!stack.isEmpty()) {
+            Directory current = stack.pop();
+            current.updatePath();
+            for (Directory child : current.children) {
+                stack.push(child);
+            }
+        }
+    }
+
+    private int countFiles(Directory directory) {
+        int count = 0;
+        Deque<Directory> stack = new ArrayDeque<>();
+        stack.push(directory);
+        while (!stack.isEmpty()) {
+            Directory current = stack.pop();
+            count += current.files.size();
+            for (Directory child : current.children) {
+                stack.push(child);
+            }
+        }
+        return count;
+    }
+
+    private int paretoSize() {
+        return (int) Math.min(pareto(10, SIZE_EXPONENT), MAX_FILE_SIZE);
+    }
+
+    // Pareto distributed value of at least minimum
+    private double pareto(double minimum, double exponent) {
+        return minimum / Math.pow(1 - random.nextDouble(), 1 / exponent);
+    }
+
+    private long writeRevision(File file) throws IOException {
+        long bytes = 0;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+            byte[] header = "id,weight\n".getBytes(StandardCharsets.UTF_8);
+            out.write(header);
+            bytes += header.length;
+            for (FileEntry entry : files) {
+                int length = writeLine(entry);
+                out.write(line, 0, length);
+                bytes += length;
+            }
+        }
+        return bytes;
+    }
+
+    // path/name,weight\n in the reusable line buffer
+    private int writeLine(FileEntry entry) {
+        byte[] path = entry.directory.path;
+        int length = path.length + entry.name.length + 12;
+        if (line.length < length) {
+            line = new byte[2 * length];
+        }
+        System.arraycopy(path, 0, line, 0, path.length);
+        System.arraycopy(entry.name, 0, line, path.length, entry.name.length);
+        int position = path.length + entry.name.length;
+        line[position++] = ',';
+        int digits = Integer.toString(entry.weight).length();
+        for (int i = digits - 1, weight = entry.weight; i >= 0; --i, weight /= 10) {
+            line[position + i] = (byte) ('0' + weight % 10);
+        }
+        position += digits;
+        line[position++] = '\n';
+        return position;
+    }
+
+    private static boolean parseOptions(String[] args) {
+        for (int i = 1; i < args.length; ++i) {
+            if (args[i].startsWith("--seed=")) {
+                seed = Long.valueOf(args[i].substring("--seed=".length()));
+            } else if (args[i].startsWith("--revisions=")) {
+                numberOfRevisions = Integer.valueOf(args[i].substring("--revisions=".length()));
+            } else if (args[i].startsWith("--initial-files=")) {
+                numberOfInitialFiles = Integer.valueOf(args[i].substring("--initial-files=".length()));
+            } else if (args[i].startsWith("--max-depth=")) {
+                maxDirectoryDepth = Integer.valueOf(args[i].substring("--max-depth=".length()));
+            } else {
+                System.out.println("Unknown option " + args[i]);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void argsError() {
+        System.out.println("Usage: \njava -cp <classes> com.ufrgs.HistoryGenerator output_dir [options]");
+        System.out.println("Options:");
+        System.out.println("  --seed=S                Random seed, the same seed gives the same files (default 1)");
+        System.out.println("  --revisions=N           Number of revision files (default 2000)");
+        System.out.println("  --initial-files=N       Files in the first revision (default 1000)");
+        System.out.println("  --max-depth=D           Deepest directory level (default 20)");
+    }
+}
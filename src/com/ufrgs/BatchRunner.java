@@ -0,0 +1,214 @@
+package com.ufrgs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Batch mode of the command line: lays out every job of a manifest in this JVM, so JVM startup
+// and JIT warm-up are paid once. Jobs run on a pool of --jobs threads, each one with its own
+// options (a fresh instance from the supplier), parser, layout and sink, and a writer thread so
+// its files are written while it lays out the next revision. A job only starts while the
+// estimated memory of all running jobs fits in the budget; a job estimated above the whole
+// budget runs alone.
+public class BatchRunner {
+
+    // Entity, block, id and snapshot memory of a hierarchy node, on top of its weights
+    private static final long ROW_BYTES = 512;
+    // Arrays of a run-length encoded row with about eight runs
+    private static final long SPARSE_ROW_BYTES = 144;
+
+    private final int numberOfThreads;
+    private final long memoryBudget;
+    private final Supplier<LayoutOptions> options;
+    private final SinkFactory sinks;
+    private final String metricsFile; // Written to each output dir, null for none
+    private final AtomicInteger finished = new AtomicInteger();
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private long memoryInUse = 0;
+    private int numberOfJobs;
+
+    public static class Job {
+        final int line;
+        final String inputDir;
+        final int width, height;
+        final String outputDir;
+
+        Job(int line, String inputDir, int width, int height, String outputDir) {
+            this.line = line;
+            this.inputDir = inputDir;
+            this.width = width;
+            this.height = height;
+            this.outputDir = outputDir;
+        }
+
+        @Override
+        public String toString() {
+            return inputDir + " -> " + outputDir;
+        }
+    }
+
+    public BatchRunner(int numberOfThreads, long memoryBudget, Supplier<LayoutOptions> options,
+                       SinkFactory sinks, String metricsFile) {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+        this.memoryBudget = memoryBudget;
+        this.options = options;
+        this.sinks = sinks;
+        this.metricsFile = metricsFile;
+    }
+
+    // One job per line, input_dir,width,height,output_dir. Empty lines and lines starting with #
+    // are skipped.
+    public static List<Job> readManifest(String fileName) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        List<String> lines = Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); ++i) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            try {
+                if (fields.length != 4) {
+                    throw new NumberFormatException();
+                }
+                jobs.add(new Job(i + 1, fields[0].trim(), Integer.valueOf(fields[1].trim()),
+                        Integer.valueOf(fields[2].trim()), fields[3].trim()));
+            } catch (NumberFormatException e) {
+                throw new IOException(fileName + ":" + (i + 1) + " is not input_dir,width,height,output_dir - " + line);
+            }
+        }
+        return jobs;
+    }
+
+    // Runs every job and returns the number that failed. If the calling thread is interrupted, the
+    // jobs that did not finish count as failed.
+    public int run(List<Job> jobs) {
+
+        long start = System.nanoTime();
+        numberOfJobs = jobs.size();
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Job job : jobs) {
+                futures.add(executor.submit(() -> runJob(job)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int failures = jobs.size() - succeeded.get();
+        System.out.println(String.format(Locale.ROOT, "%d jobs, %d failed, in %.1f s",
+                jobs.size(), failures, (System.nanoTime() - start) / 1e9));
+        return failures;
+    }
+
+    private void runJob(Job job) {
+        long estimate = 0;
+        boolean admitted = false;
+        try {
+            LayoutOptions options = this.options.get();
+            estimate = estimateMemory(job.inputDir, options.sparseWeights);
+            acquire(estimate);
+            admitted = true;
+
+            // New metrics once admitted, so they don't count the wait
+            long start = System.nanoTime();
+            options.setMetrics(new Metrics(options.getMetrics().isEnabled()));
+            options.setWriterThreads(Math.max(1, options.writerThreads));
+            LayoutEngine engine = new LayoutEngine(options);
+            TreemapManager manager = engine.layout(engine.parse(job.inputDir), new Rectangle(job.width, job.height));
+            manager.run(sinks.create(job.outputDir));
+            if (metricsFile != null) {
+                options.getMetrics().writeSummary(new File(job.outputDir, metricsFile).getPath());
+            }
+
+            succeeded.incrementAndGet();
+            System.out.println(String.format(Locale.ROOT, "[%d/%d] %s in %.1f s, estimated %.1f MB",
+                    finished.incrementAndGet(), numberOfJobs, job, (System.nanoTime() - start) / 1e9, estimate / 1e6));
+        } catch (Exception | OutOfMemoryError e) {
+            System.out.println(String.format(Locale.ROOT, "[%d/%d] %s (manifest line %d) failed - %s",
+                    finished.incrementAndGet(), numberOfJobs, job, job.line, e));
+            e.printStackTrace();
+        } finally {
+            if (admitted) {
+                release(estimate);
+            }
+        }
+    }
+
+    private synchronized void acquire(long bytes) throws InterruptedException {
+        while (memoryInUse > 0 && memoryInUse + bytes > memoryBudget) {
+            wait();
+        }
+        memoryInUse += bytes;
+    }
+
+    private synchronized void release(long bytes) {
+        memoryInUse -= bytes;
+        notifyAll();
+    }
+
+    // Heap a job is expected to need, mostly its weight store, estimated without parsing. Every
+    // line of the largest revision file is taken as a file of the hierarchy, and the count is
+    // doubled for directories and for files that only exist in other revisions. A dense matrix
+    // has a cell per row and revision; sparse rows usually hold a few runs, and never more
+    // memory than dense ones.
+    static long estimateMemory(String inputDir, boolean sparseWeights) throws IOException {
+
+        File[] files = new File(inputDir).listFiles(File::isFile);
+        if (files == null || files.length == 0) {
+            return 0;
+        }
+        File largest = files[0];
+        for (File file : files) {
+            if (file.length() > largest.length()) {
+                largest = file;
+            }
+        }
+
+        long lines = Math.max(1, countLines(largest));
+        long rows = 2 * lines;
+        long weightBytes = rows * files.length * Double.BYTES;
+        if (sparseWeights) {
+            weightBytes = Math.min(weightBytes, rows * SPARSE_ROW_BYTES);
+        }
+        return weightBytes + rows * ROW_BYTES;
+    }
+
+    private static long countLines(File file) throws IOException {
+        long lines = 0;
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                for (int i = 0; i < length; ++i) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,141 @@
+package com.ufrgs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Columnar binary output, read back by BinaryRectangleReader. All numbers are little endian.
+//
+// ids.bin, grown before each revision file that uses new ids, so a run that is killed leaves
+// readable output for the revisions it finished:
+//   int MAGIC_IDS, int VERSION, int count, then count times (int length, length bytes of UTF-8)
+// t<revision>.bin, one per revision:
+//   int MAGIC_REVISION, int VERSION, int revision, int count,
+//   int[count] id indices into ids.bin, padding to a multiple of 8 bytes,
+//   double[count] x, double[count] y, double[count] width, double[count] height
+public class BinaryFileSink implements RectangleSink {
+
+    static final int MAGIC_IDS = 0x53515444; // SQTD
+    static final int MAGIC_REVISION = 0x53515442; // SQTB
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    private final String outputDir;
+    private final Map<String, Integer> idIndex = new HashMap<>();
+    private final List<String> ids = new ArrayList<>();
+    private int idsWritten = 0; // Ids already counted in ids.bin
+    private FileChannel idsChannel;
+    private long bytesWritten = 0;
+    private ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+    public BinaryFileSink(String outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    // Byte offset of the first column, after the id indices and their padding
+    static int columnsOffset(int count) {
+        return HEADER_SIZE + ((4 * count + 7) & ~7);
+    }
+
+    @Override
+    public void write(RectangleSnapshot snapshot) throws IOException {
+
+        int count = snapshot.size();
+        int columns = columnsOffset(count);
+        int size = columns + 4 * 8 * count;
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, 2 * buffer.capacity())).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+
+        buffer.putInt(MAGIC_REVISION).putInt(VERSION).putInt(snapshot.getRevision()).putInt(count);
+        for (int i = 0; i < count; ++i) {
+            buffer.putInt(idIndex.computeIfAbsent(snapshot.ids[i], this::addId));
+        }
+        buffer.position(columns);
+        for (double[] column : new double[][]{snapshot.x, snapshot.y, snapshot.width, snapshot.height}) {
+            for (int i = 0; i < count; ++i) {
+                buffer.putDouble(column[i]);
+            }
+        }
+        buffer.flip();
+
+        writeIds();
+        writeFile(String.format("%s/t%d.bin", outputDir, snapshot.getRevision()), buffer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeIds();
+        idsChannel.close();
+    }
+
+    // Appends the ids added since the last call to ids.bin, then counts them in its header. Until
+    // the count is updated the reader ignores the new entries.
+    private void writeIds() throws IOException {
+
+        if (idsChannel == null) {
+            idsChannel = FileChannel.open(Paths.get(outputDir, "ids.bin"),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC_IDS).putInt(VERSION).putInt(0).flip();
+            write(idsChannel, header, 0);
+            bytesWritten += 12;
+        }
+        if (idsWritten == ids.size()) {
+            return;
+        }
+
+        List<byte[]> encoded = new ArrayList<>();
+        int size = 0;
+        for (String id : ids.subList(idsWritten, ids.size())) {
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            size += 4 + bytes.length;
+        }
+        ByteBuffer entries = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        for (byte[] bytes : encoded) {
+            entries.putInt(bytes.length).put(bytes);
+        }
+        entries.flip();
+        write(idsChannel, entries, idsChannel.size());
+
+        ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        count.putInt(ids.size()).flip();
+        write(idsChannel, count, 8);
+        idsWritten = ids.size();
+        bytesWritten += size;
+    }
+
+    private int addId(String id) {
+        ids.add(id);
+        return ids.size() - 1;
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void writeFile(String fileName, ByteBuffer contents) throws IOException {
+        bytesWritten += contents.remaining();
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(channel, contents, 0);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer contents, long position) throws IOException {
+        while (contents.hasRemaining()) {
+            position += channel.write(contents, position);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.ufrgs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Reads the output of BinaryFileSink. Revisions are memory mapped and their columns are read
+// in place, without copying.
+public class BinaryRectangleReader {
+
+    private final String directory;
+    private final String[] ids;
+
+    public BinaryRectangleReader(String directory) throws IOException {
+        this.directory = directory;
+
+        ByteBuffer dictionary = map(directory + "/ids.bin");
+        checkHeader(dictionary, BinaryFileSink.MAGIC_IDS, "ids.bin");
+        ids = new String[dictionary.getInt()];
+        for (int i = 0; i < ids.length; ++i) {
+            byte[] bytes = new byte[dictionary.getInt()];
+            dictionary.get(bytes);
+            ids[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    public int getNumberOfIds() {
+        return ids.length;
+    }
+
+    public String getId(int index) {
+        return ids[index];
+    }
+
+    public Revision read(int revision) throws IOException {
+        String fileName = String.format("t%d.bin", revision);
+        ByteBuffer buffer = map(directory + "/" + fileName);
+        checkHeader(buffer, BinaryFileSink.MAGIC_REVISION, fileName);
+        buffer.getInt(); // Revision
+        return new Revision(buffer, buffer.getInt());
+    }
+
+    // Column views over one mapped revision file
+    public class Revision {
+
+        private final int size;
+        private final IntBuffer idIndices;
+        private final DoubleBuffer x, y, width, height;
+
+        private Revision(ByteBuffer buffer, int size) {
+            this.size = size;
+            this.idIndices = slice(buffer, BinaryFileSink.HEADER_SIZE, 4 * size).asIntBuffer();
+            int columns = BinaryFileSink.columnsOffset(size);
+            this.x = slice(buffer, columns, 8 * size).asDoubleBuffer();
+            this.y = slice(buffer, columns + 8 * size, 8 * size).asDoubleBuffer();
+            this.width = slice(buffer, columns + 16 * size, 8 * size).asDoubleBuffer();
+            this.height = slice(buffer, columns + 24 * size, 8 * size).asDoubleBuffer();
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getIdIndex(int i) {
+            return idIndices.get(i);
+        }
+
+        public String getId(int i) {
+            return ids[idIndices.get(i)];
+        }
+
+        public double getX(int i) {
+            return x.get(i);
+        }
+
+        public double getY(int i) {
+            return y.get(i);
+        }
+
+        public double getWidth(int i) {
+            return width.get(i);
+        }
+
+        public double getHeight(int i) {
+            return height.get(i);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset).limit(offset + length);
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void checkHeader(ByteBuffer buffer, int magic, String fileName) throws IOException {
+        if (buffer.getInt() != magic || buffer.getInt() != BinaryFileSink.VERSION) {
+            throw new IOException("Not a treemap binary file - " + fileName);
+        }
+    }
+
+    private static MappedByteBuffer map(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+}
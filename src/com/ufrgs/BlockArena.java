@@ -0,0 +1,240 @@
+package com.ufrgs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+// Block tree of a treemap stored as parallel arrays. A block is an int index, its children are
+// indices into the same arrays and NONE marks a missing child. The geometry of a block is the
+// rectangle of its central part (C), as in the drawing in Treemap.computeCoordinates.
+public class BlockArena {
+
+    public static final int NONE = -1;
+
+    int size = 0;
+
+    String[] id;
+    WeightStore[] weights;
+    int[] row; // NONE when the block has no weight of its own
+    int[] central, right, bottom;
+    double[] x, y, width, height;
+    double[] fullWeight; // Subtree weight cached by Treemap.updateFullWeights
+    int[] worstBlock; // Worst aspect ratio block of the subtree, see Treemap.updateWorstAspectRatios
+    double[] worstAspectRatio;
+
+    // Blocks in pre-order (block, central, right, bottom), rebuilt after the tree changes
+    private int[] preOrder;
+    private int preOrderSize = 0;
+    private boolean preOrderValid = false;
+    private int preOrderRoot = NONE;
+    private int[] stack;
+
+    public BlockArena() {
+        this(16);
+    }
+
+    public BlockArena(int capacity) {
+        id = new String[capacity];
+        weights = new WeightStore[capacity];
+        row = new int[capacity];
+        central = new int[capacity];
+        right = new int[capacity];
+        bottom = new int[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        width = new double[capacity];
+        height = new double[capacity];
+        fullWeight = new double[capacity];
+        worstBlock = new int[capacity];
+        worstAspectRatio = new double[capacity];
+        preOrder = new int[capacity];
+        stack = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Block without weight, used to hold other blocks
+    public int addBlock() {
+        return addBlock(null, null, NONE);
+    }
+
+    public int addBlock(Entity entity) {
+        return addBlock(entity.getId(), entity.getWeights(), entity.getRow());
+    }
+
+    public int addBlock(String blockId, WeightStore blockWeights, int blockRow) {
+        if (size == id.length) {
+            grow();
+        }
+        int block = size++;
+        id[block] = blockId;
+        weights[block] = blockWeights;
+        row[block] = blockRow;
+        central[block] = NONE;
+        right[block] = NONE;
+        bottom[block] = NONE;
+        preOrderValid = false;
+        return block;
+    }
+
+    public void setCentral(int block, int child) {
+        central[block] = child;
+        preOrderValid = false;
+    }
+
+    public void setRight(int block, int child) {
+        right[block] = child;
+        preOrderValid = false;
+    }
+
+    public void setBottom(int block, int child) {
+        bottom[block] = child;
+        preOrderValid = false;
+    }
+
+    // Gives the block's weight to another block, leaving it as a plain container
+    public void clearWeight(int block) {
+        id[block] = null;
+        weights[block] = null;
+        row[block] = NONE;
+    }
+
+    public double getWeight(int block, int revision) {
+        return row[block] != NONE ? weights[block].get(row[block], revision) : 0;
+    }
+
+    // Weight of the central part: the central subtree if there is one, the block's own otherwise
+    public double getCentralWeight(int block, int revision) {
+        return central[block] == NONE ? getWeight(block, revision) : fullWeight[central[block]];
+    }
+
+    // Same as Rectangle.getAspectRatio
+    public double getAspectRatio(int block) {
+        if (width[block] == 0 || height[block] == 0) {
+            return 1;
+        }
+        return Math.min(width[block] / height[block], height[block] / width[block]);
+    }
+
+    public void setRectangle(int block, Rectangle rectangle) {
+        x[block] = rectangle.x;
+        y[block] = rectangle.y;
+        width[block] = rectangle.width;
+        height[block] = rectangle.height;
+    }
+
+    public void copyRectangle(int block, Rectangle target) {
+        target.x = x[block];
+        target.y = y[block];
+        target.width = width[block];
+        target.height = height[block];
+    }
+
+    public Rectangle getRectangle(int block) {
+        return new Rectangle(x[block], y[block], width[block], height[block]);
+    }
+
+    // Number of blocks reachable from the root, listed in pre-order by getPreOrder
+    public int preOrder(int root) {
+        if (!preOrderValid || preOrderRoot != root) {
+            preOrderSize = 0;
+            int top = 0;
+            if (root != NONE) {
+                stack[top++] = root;
+            }
+            while (top > 0) {
+                int block = stack[--top];
+                preOrder[preOrderSize++] = block;
+                // Pushed in reverse so the central subtree comes out first
+                if (bottom[block] != NONE) {
+                    stack[top++] = bottom[block];
+                }
+                if (right[block] != NONE) {
+                    stack[top++] = right[block];
+                }
+                if (central[block] != NONE) {
+                    stack[top++] = central[block];
+                }
+            }
+            preOrderValid = true;
+            preOrderRoot = root;
+        }
+        return preOrderSize;
+    }
+
+    public int[] getPreOrder() {
+        return preOrder;
+    }
+
+    // Writes every block for a checkpoint. Weights are not written, they are the entities' own.
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        for (int block = 0; block < size; ++block) {
+            out.writeBoolean(id[block] != null);
+            if (id[block] != null) {
+                out.writeUTF(id[block]);
+            }
+        }
+        for (int[] column : new int[][]{central, right, bottom, worstBlock}) {
+            for (int block = 0; block < size; ++block) {
+                out.writeInt(column[block]);
+            }
+        }
+        for (double[] column : new double[][]{x, y, width, height, fullWeight, worstAspectRatio}) {
+            for (int block = 0; block < size; ++block) {
+                out.writeDouble(column[block]);
+            }
+        }
+    }
+
+    // Reads the blocks written by write, taking the weights of each block from the entity with its id
+    public static BlockArena read(DataInputStream in, Map<String, Entity> entities) throws IOException {
+        int size = in.readInt();
+        BlockArena arena = new BlockArena(Math.max(size, 16));
+        for (int block = 0; block < size; ++block) {
+            if (in.readBoolean()) {
+                Entity entity = entities.get(in.readUTF());
+                if (entity == null) {
+                    throw new IOException("Checkpoint block has no matching entity");
+                }
+                arena.addBlock(entity);
+            } else {
+                arena.addBlock();
+            }
+        }
+        for (int[] column : new int[][]{arena.central, arena.right, arena.bottom, arena.worstBlock}) {
+            for (int block = 0; block < size; ++block) {
+                column[block] = in.readInt();
+            }
+        }
+        for (double[] column : new double[][]{arena.x, arena.y, arena.width, arena.height, arena.fullWeight, arena.worstAspectRatio}) {
+            for (int block = 0; block < size; ++block) {
+                column[block] = in.readDouble();
+            }
+        }
+        return arena;
+    }
+
+    private void grow() {
+        int capacity = 2 * id.length;
+        id = Arrays.copyOf(id, capacity);
+        weights = Arrays.copyOf(weights, capacity);
+        row = Arrays.copyOf(row, capacity);
+        central = Arrays.copyOf(central, capacity);
+        right = Arrays.copyOf(right, capacity);
+        bottom = Arrays.copyOf(bottom, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        width = Arrays.copyOf(width, capacity);
+        height = Arrays.copyOf(height, capacity);
+        fullWeight = Arrays.copyOf(fullWeight, capacity);
+        worstBlock = Arrays.copyOf(worstBlock, capacity);
+        worstAspectRatio = Arrays.copyOf(worstAspectRatio, capacity);
+        preOrder = Arrays.copyOf(preOrder, capacity);
+        stack = Arrays.copyOf(stack, capacity);
+    }
+}
@@ -0,0 +1,98 @@
+package com.ufrgs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+// Complete layout state after a revision, written to c<revision>.ckpt so a later run can resume
+// from it instead of replaying the history from revision 0. The layout depends on the canvas
+// and on the insertion mode, so checkpoints only match runs with the same ones. Weights are not
+// included, they come from parsing the same input again.
+public class Checkpoint {
+
+    private static final int MAGIC = 0x5351544B; // SQTK
+    private static final int VERSION = 1;
+
+    final int revision;
+    final Treemap rootTreemap;
+
+    private Checkpoint(int revision, Treemap rootTreemap) {
+        this.revision = revision;
+        this.rootTreemap = rootTreemap;
+    }
+
+    public static void write(String directory, int revision, Rectangle canvas, Treemap rootTreemap,
+                             LayoutOptions options) throws IOException {
+
+        new File(directory).mkdirs();
+        // Written aside and renamed, so an interrupted run never leaves a truncated checkpoint
+        File file = getFile(directory, revision);
+        File temporary = new File(directory, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(revision);
+            out.writeInt(rootTreemap.size());
+            out.writeDouble(canvas.width);
+            out.writeDouble(canvas.height);
+            out.writeBoolean(options.batchedInsertion);
+            rootTreemap.write(out);
+        }
+        if (!temporary.renameTo(file)) {
+            file.delete();
+            if (!temporary.renameTo(file)) {
+                throw new IOException("Could not write checkpoint " + file);
+            }
+        }
+    }
+
+    // Latest checkpoint at or before the revision that matches the canvas and the hierarchy, or
+    // null if there is none. Checkpoints that can't be used, left by a run with other settings or
+    // another input, are skipped and counted in the checkpointsSkipped metric.
+    public static Checkpoint readLatest(String directory, int revision, Rectangle canvas, Entity root,
+                                        LayoutOptions options) {
+
+        for (; revision >= 0; --revision) {
+            File file = getFile(directory, revision);
+            if (!file.exists()) {
+                continue;
+            }
+            try {
+                return read(file, revision, canvas, root, options);
+            } catch (IOException e) {
+                options.metrics.count(Metrics.Counter.CHECKPOINTS_SKIPPED, 1);
+            }
+        }
+        return null;
+    }
+
+    private static Checkpoint read(File file, int revision, Rectangle canvas, Entity root,
+                                   LayoutOptions options) throws IOException {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != revision) {
+                throw new IOException("Not a treemap checkpoint - " + file);
+            }
+            int size = in.readInt();
+            if (in.readDouble() != canvas.width || in.readDouble() != canvas.height
+                    || in.readBoolean() != options.batchedInsertion) {
+                throw new IOException("Checkpoint was written for another canvas or insertion mode - " + file);
+            }
+            Treemap rootTreemap = Treemap.read(in, Collections.singletonMap(root.getId(), root), options);
+            if (rootTreemap.size() != size) {
+                throw new IOException("Checkpoint does not match the input - " + file);
+            }
+            return new Checkpoint(revision, rootTreemap);
+        }
+    }
+
+    private static File getFile(String directory, int revision) {
+        return new File(directory, "c" + revision + ".ckpt");
+    }
+}
@@ -0,0 +1,87 @@
+package com.ufrgs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Appends the .rect contents of every revision to a single file and ends it with an index, so
+// ContainerReader can seek straight to any revision. All numbers are little endian.
+//   int MAGIC, int VERSION
+//   .rect contents of each revision, in the order they were written
+//   int count, then count times (int revision, long offset, int length)
+//   long offset of the index, int MAGIC
+// Revisions are serialized on the writer threads and appended in any order.
+public class ContainerFileSink implements RectangleSink {
+
+    static final String FILE_NAME = "revisions.rects";
+    static final int MAGIC = 0x53515443; // SQTC
+    static final int VERSION = 1;
+    static final int INDEX_ENTRY_SIZE = 16;
+    static final int TRAILER_SIZE = 12;
+
+    private final FileChannel channel;
+    private final ThreadLocal<RectangleSerializer> serializer = ThreadLocal.withInitial(RectangleSerializer::new);
+    private long position;
+    private ByteBuffer index = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 64).order(ByteOrder.LITTLE_ENDIAN);
+
+    public ContainerFileSink(String outputDir) throws IOException {
+        this.channel = FileChannel.open(Paths.get(outputDir, FILE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        append(header);
+    }
+
+    @Override
+    public void write(RectangleSnapshot snapshot) throws IOException {
+
+        RectangleSerializer serializer = this.serializer.get();
+        serializer.serialize(snapshot);
+        ByteBuffer contents = ByteBuffer.wrap(serializer.getBuffer(), 0, serializer.getLength());
+
+        synchronized (this) {
+            if (index.remaining() < INDEX_ENTRY_SIZE) {
+                index.flip();
+                index = ByteBuffer.allocate(2 * index.capacity()).order(ByteOrder.LITTLE_ENDIAN).put(index);
+            }
+            index.putInt(snapshot.getRevision()).putLong(position).putInt(serializer.getLength());
+            append(contents);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        long indexOffset = position;
+        ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        count.putInt(index.position() / INDEX_ENTRY_SIZE).flip();
+        append(count);
+        index.flip();
+        append(index);
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putLong(indexOffset).putInt(MAGIC).flip();
+        append(trailer);
+        channel.close();
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    @Override
+    public synchronized long getBytesWritten() {
+        return position;
+    }
+
+    private void append(ByteBuffer contents) throws IOException {
+        position += contents.remaining();
+        while (contents.hasRemaining()) {
+            channel.write(contents);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.ufrgs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+// Random access to the revisions of a container written by ContainerFileSink. Only the index is
+// read up front, every revision is a single positional read.
+//
+// As a utility, prints the .rect contents of one revision:
+// java -cp ./bin com.ufrgs.ContainerReader output_dir revision
+public class ContainerReader implements AutoCloseable {
+
+    private final FileChannel channel;
+    private final Map<Integer, long[]> index = new HashMap<>(); // Revision -> {offset, length}
+    private int numberOfRevisions = 0;
+
+    public ContainerReader(String directory) throws IOException {
+
+        channel = FileChannel.open(Paths.get(directory, ContainerFileSink.FILE_NAME), StandardOpenOption.READ);
+
+        ByteBuffer trailer = read(channel.size() - ContainerFileSink.TRAILER_SIZE, ContainerFileSink.TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        ByteBuffer header = read(0, 8);
+        if (trailer.getInt() != ContainerFileSink.MAGIC || header.getInt() != ContainerFileSink.MAGIC
+                || header.getInt() != ContainerFileSink.VERSION) {
+            throw new IOException("Not a complete treemap container - " + directory);
+        }
+
+        int count = read(indexOffset, 4).getInt();
+        ByteBuffer entries = read(indexOffset + 4, count * ContainerFileSink.INDEX_ENTRY_SIZE);
+        for (int i = 0; i < count; ++i) {
+            int revision = entries.getInt();
+            index.put(revision, new long[]{entries.getLong(), entries.getInt()});
+            numberOfRevisions = Math.max(numberOfRevisions, revision + 1);
+        }
+    }
+
+    public static void main(String[] args) {
+
+        if (args.length != 2) {
+            System.out.println("Usage: \njava -cp ./bin com.ufrgs.ContainerReader output_dir revision");
+            System.exit(-1);
+        }
+
+        try (ContainerReader reader = new ContainerReader(args[0])) {
+            WritableByteChannel out = Channels.newChannel(System.out);
+            out.write(reader.read(Integer.valueOf(args[1])));
+            System.out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    public int getNumberOfRevisions() {
+        return numberOfRevisions;
+    }
+
+    public boolean contains(int revision) {
+        return index.containsKey(revision);
+    }
+
+    // The .rect contents of a revision
+    public ByteBuffer read(int revision) throws IOException {
+        long[] entry = index.get(revision);
+        if (entry == null) {
+            throw new IOException("Revision " + revision + " is not in the container");
+        }
+        return read(entry[0], (int) entry[1]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of container");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,174 @@
+package com.ufrgs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Reads one revision file (id,weight) straight from a memory mapped buffer.
+// Ids are resolved through an IdDictionary and plain decimal weights are parsed from the
+// bytes, so a row normally allocates nothing.
+public class CsvTokenizer {
+
+    // Largest mantissa that is exactly representable as a double
+    private static final long MAX_EXACT = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Rows of a single revision file, in file order, with ids indexing the dictionary
+    public static class Rows {
+        final IdDictionary dictionary;
+        int[] ids = new int[1024];
+        double[] weights = new double[1024];
+        int size = 0;
+
+        Rows(IdDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        void add(int id, double weight) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * size);
+                weights = Arrays.copyOf(weights, 2 * size);
+            }
+            ids[size] = id;
+            weights[size] = weight;
+            size++;
+        }
+    }
+
+    public static Rows tokenize(String fileName, IdDictionary dictionary) throws IOException {
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Revision file larger than 2GB - " + fileName);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return tokenize(buffer, fileName, dictionary);
+    }
+
+    // Rows of a revision already in memory, from position 0 to the buffer's limit
+    public static Rows tokenize(ByteBuffer buffer, String name, IdDictionary dictionary) throws IOException {
+
+        Rows rows = new Rows(dictionary);
+        int limit = buffer.limit();
+
+        // Header
+        int lineEnd = findLineEnd(buffer, 0, limit);
+        String[] header = new String(readBytes(buffer, 0, lineEnd), StandardCharsets.UTF_8).split(",");
+        if (header.length < 2 || !header[0].equals("id") || !header[1].equals("weight")) {
+            throw new IOException("Error parsing header - " + name);
+        }
+
+        int position = nextLine(buffer, lineEnd, limit);
+        while (position < limit) {
+
+            lineEnd = findLineEnd(buffer, position, limit);
+
+            // Trailing commas are ignored, as String.split(",") does
+            int end = lineEnd;
+            while (end > position && buffer.get(end - 1) == ',') {
+                end--;
+            }
+
+            int comma = -1;
+            boolean valid = true;
+            for (int i = position; i < end; ++i) {
+                if (buffer.get(i) == ',') {
+                    valid = comma == -1;
+                    comma = i;
+                }
+            }
+
+            if (comma == -1 || !valid) {
+                throw new IOException("Error parsing csv file - " + name + ", row " + (rows.size + 1));
+            }
+            try {
+                double weight = parseWeight(buffer, comma + 1, end);
+                rows.add(dictionary.lookup(buffer, position, comma - position), weight);
+            } catch (NumberFormatException e) {
+                throw new IOException("Error parsing csv file - " + name + ", row " + (rows.size + 1), e);
+            }
+
+            position = nextLine(buffer, lineEnd, limit);
+        }
+        return rows;
+    }
+
+    // Plain decimals ([+-]digits[.digits]) with at most 2^53 as mantissa are divided by an exact
+    // power of ten, which rounds exactly like Double.parseDouble. Anything else falls back to it.
+    private static double parseWeight(ByteBuffer buffer, int start, int end) {
+
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0, fractionDigits = 0;
+        boolean point = false;
+        for (; i < end; ++i) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                mantissa = 10 * mantissa + (b - '0');
+                digits++;
+                if (point) {
+                    fractionDigits++;
+                }
+                if (mantissa >= MAX_EXACT) {
+                    break;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+
+        if (i == end && digits > 0 && fractionDigits < POWERS_OF_TEN.length) {
+            double weight = mantissa / POWERS_OF_TEN[fractionDigits];
+            return negative ? -weight : weight;
+        }
+        return Double.parseDouble(new String(readBytes(buffer, start, end), StandardCharsets.UTF_8));
+    }
+
+    // Position of the '\n' or '\r' that ends the line, or the limit
+    private static int findLineEnd(ByteBuffer buffer, int position, int limit) {
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b == '\n' || b == '\r') {
+                return position;
+            }
+            position++;
+        }
+        return limit;
+    }
+
+    private static int nextLine(ByteBuffer buffer, int lineEnd, int limit) {
+        if (lineEnd < limit && buffer.get(lineEnd) == '\r') {
+            lineEnd++;
+        }
+        if (lineEnd < limit && buffer.get(lineEnd) == '\n') {
+            lineEnd++;
+        }
+        return lineEnd;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; ++i) {
+            bytes[i - start] = buffer.get(i);
+        }
+        return bytes;
+    }
+}
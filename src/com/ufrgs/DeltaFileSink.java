@@ -0,0 +1,125 @@
+package com.ufrgs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Writes a full t<revision>.rect keyframe every keyframeInterval revisions and, in between, a
+// t<revision>.delta file with one line per change since the previous revision:
+//   +id,x,y,width,height    for a rectangle that was added or moved by more than epsilon
+//   -id                     for a rectangle that was removed
+// Positions are compared with the last ones written, not the last ones computed, so small
+// movements can not add up to more than epsilon. DeltaRectangleReader rebuilds any revision.
+public class DeltaFileSink implements RectangleSink {
+
+    private final String outputDir;
+    private final int keyframeInterval;
+    private final double epsilon;
+    private final RectangleSerializer serializer = new RectangleSerializer();
+
+    // Rectangles as a reader sees them after the last revision written
+    private final Map<String, Placement> placements = new HashMap<>();
+    private byte[] buffer = new byte[1 << 16];
+    private int previousRevision = -1;
+    private long bytesWritten = 0;
+
+    private static class Placement {
+        double x, y, width, height;
+        int revision;
+    }
+
+    public DeltaFileSink(String outputDir, int keyframeInterval, double epsilon) {
+        this.outputDir = outputDir;
+        this.keyframeInterval = Math.max(keyframeInterval, 1);
+        this.epsilon = epsilon;
+    }
+
+    @Override
+    public void write(RectangleSnapshot snapshot) throws IOException {
+
+        int revision = snapshot.getRevision();
+        // Runs starting at a later revision begin with a keyframe, deltas need the revision before
+        boolean keyframe = revision % keyframeInterval == 0 || revision != previousRevision + 1;
+        previousRevision = revision;
+        int length = 0;
+
+        for (int i = 0; i < snapshot.size(); ++i) {
+            Placement placement = placements.get(snapshot.ids[i]);
+            if (placement == null) {
+                placement = new Placement();
+                placements.put(snapshot.ids[i], placement);
+            } else if (!keyframe && !moved(placement, snapshot, i)) {
+                placement.revision = revision;
+                continue;
+            }
+            placement.x = snapshot.x[i];
+            placement.y = snapshot.y[i];
+            placement.width = snapshot.width[i];
+            placement.height = snapshot.height[i];
+            placement.revision = revision;
+            if (!keyframe) {
+                length = writeChange('+', snapshot.ids[i], placement, length);
+            }
+        }
+
+        Iterator<Map.Entry<String, Placement>> iterator = placements.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Placement> entry = iterator.next();
+            if (entry.getValue().revision != revision) {
+                iterator.remove();
+                if (!keyframe) {
+                    length = writeChange('-', entry.getKey(), null, length);
+                }
+            }
+        }
+
+        byte[] contents = buffer;
+        String fileName = String.format("%s/t%d.delta", outputDir, revision);
+        if (keyframe) {
+            serializer.serialize(snapshot);
+            contents = serializer.getBuffer();
+            length = serializer.getLength();
+            fileName = String.format("%s/t%d.rect", outputDir, revision);
+        }
+        try (OutputStream out = Files.newOutputStream(Paths.get(fileName))) {
+            out.write(contents, 0, length);
+        }
+        bytesWritten += length;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private boolean moved(Placement placement, RectangleSnapshot snapshot, int i) {
+        return Math.abs(placement.x - snapshot.x[i]) > epsilon || Math.abs(placement.y - snapshot.y[i]) > epsilon
+                || Math.abs(placement.width - snapshot.width[i]) > epsilon
+                || Math.abs(placement.height - snapshot.height[i]) > epsilon;
+    }
+
+    private int writeChange(char change, String id, Placement placement, int position) {
+        buffer = RectangleSerializer.ensureCapacity(buffer, position + 1 + 3 * id.length()
+                + 4 * (1 + RectangleSerializer.MAX_NUMBER_LENGTH) + RectangleSerializer.LINE_SEPARATOR.length);
+        buffer[position++] = (byte) change;
+        position = RectangleSerializer.writeUtf8(id, buffer, position);
+        if (placement != null) {
+            for (double value : new double[]{placement.x, placement.y, placement.width, placement.height}) {
+                buffer[position++] = ',';
+                position = RectangleSerializer.formatFixed(value, buffer, position);
+            }
+        }
+        for (byte b : RectangleSerializer.LINE_SEPARATOR) {
+            buffer[position++] = b;
+        }
+        return position;
+    }
+}
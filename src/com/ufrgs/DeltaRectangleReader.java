@@ -0,0 +1,124 @@
+package com.ufrgs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Rebuilds revisions written by DeltaFileSink: the closest keyframe at or before the revision,
+// followed by every delta up to it. Reading revisions in increasing order applies each delta
+// only once.
+//
+// As a utility, expands a delta directory back into one t<revision>.rect file per revision:
+// java -cp ./bin com.ufrgs.DeltaRectangleReader delta_dir output_dir
+public class DeltaRectangleReader {
+
+    private final String directory;
+    private final Map<String, double[]> rectangles = new LinkedHashMap<>();
+    private int revision = -1;
+
+    public DeltaRectangleReader(String directory) {
+        this.directory = directory;
+    }
+
+    public static void main(String[] args) {
+
+        if (args.length != 2) {
+            System.out.println("Usage: \njava -cp ./bin com.ufrgs.DeltaRectangleReader delta_dir output_dir");
+            System.exit(-1);
+        }
+
+        DeltaRectangleReader reader = new DeltaRectangleReader(args[0]);
+        RectangleSerializer serializer = new RectangleSerializer();
+        new File(args[1]).mkdirs();
+        try {
+            for (int revision = reader.getFirstRevision(); reader.exists(revision); ++revision) {
+                serializer.serialize(reader.read(revision));
+                try (OutputStream out = Files.newOutputStream(Paths.get(args[1], "t" + revision + ".rect"))) {
+                    out.write(serializer.getBuffer(), 0, serializer.getLength());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    // Lowest revision in the directory, 0 unless the run started at a later revision
+    public int getFirstRevision() {
+        int first = 0;
+        String[] names = new File(directory).list((dir, name) -> name.matches("t\\d+\\.(rect|delta)"));
+        if (names != null && names.length > 0) {
+            first = Integer.MAX_VALUE;
+            for (String name : names) {
+                first = Math.min(first, Integer.valueOf(name.substring(1, name.indexOf('.'))));
+            }
+        }
+        return first;
+    }
+
+    public boolean exists(int revision) {
+        return keyframe(revision).exists() || delta(revision).exists();
+    }
+
+    public RectangleSnapshot read(int revision) throws IOException {
+
+        int keyframe = revision;
+        while (!keyframe(keyframe).exists()) {
+            if (--keyframe < 0) {
+                throw new IOException("No keyframe for revision " + revision + " in " + directory);
+            }
+        }
+
+        // Continue from the last revision read when no keyframe comes in between
+        if (this.revision < keyframe || this.revision > revision) {
+            rectangles.clear();
+            for (String line : Files.readAllLines(keyframe(keyframe).toPath(), StandardCharsets.UTF_8)) {
+                putLine(line, 0);
+            }
+            this.revision = keyframe;
+        }
+        while (this.revision < revision) {
+            this.revision++;
+            for (String line : Files.readAllLines(delta(this.revision).toPath(), StandardCharsets.UTF_8)) {
+                if (line.charAt(0) == '-') {
+                    rectangles.remove(line.substring(1));
+                } else {
+                    putLine(line, 1);
+                }
+            }
+        }
+
+        RectangleSnapshot snapshot = new RectangleSnapshot(revision);
+        for (Map.Entry<String, double[]> entry : rectangles.entrySet()) {
+            double[] r = entry.getValue();
+            snapshot.add(entry.getKey(), r[0], r[1], r[2], r[3]);
+        }
+        return snapshot;
+    }
+
+    // Ids may contain commas, so the four numbers are taken from the end of the line
+    private void putLine(String line, int start) {
+        double[] rectangle = new double[4];
+        int end = line.length();
+        for (int i = 3; i >= 0; --i) {
+            int comma = line.lastIndexOf(',', end - 1);
+            rectangle[i] = Double.parseDouble(line.substring(comma + 1, end));
+            end = comma;
+        }
+        rectangles.put(line.substring(start, end), rectangle);
+    }
+
+    private File keyframe(int revision) {
+        return new File(directory, "t" + revision + ".rect");
+    }
+
+    private File delta(int revision) {
+        return new File(directory, "t" + revision + ".delta");
+    }
+}
@@ -8,11 +8,19 @@ public class Entity {
     private String id;
     private String shortId;
     private String printId = "";
-    private List<Double> weightList;
+    private WeightStore weights;
+    private int row;
+    private int additionRevision = -1, removalRevision = -1; // Cached, -1 until first asked for
+    private int subtreeSize = 0; // Cached, 0 until first asked for and on every ancestor of a new child
     public List<Rectangle> rectangleList;
     private List<Entity> children;
+    private Entity parent;
 
     public Entity(String id, int numberOfRevisions) {
+        this(id, new WeightMatrix(numberOfRevisions));
+    }
+
+    public Entity(String id, WeightStore weights) {
 
         this.id = id;
         String split[] = getId().split("/");
@@ -20,10 +28,8 @@ public class Entity {
 
         // Initialize lists
         children = new ArrayList<>();
-        weightList = new ArrayList<>(numberOfRevisions);
-        for (int i = 0; i < numberOfRevisions; ++i) {
-            weightList.add(0.0);
-        }
+        this.weights = weights;
+        this.row = weights.addRow();
     }
 
     public String getId() {
@@ -31,45 +37,77 @@ public class Entity {
     }
 
     public int getNumberOfRevisions() {
-        return weightList.size();
+        return weights.getNumberOfRevisions();
     }
 
     public double getWeight(int revision) {
-        return weightList.get(revision);
+        return weights.get(row, revision);
     }
 
     public void setWeight(double weight, int revision) {
-        weightList.set(revision, weight);
+        weights.set(row, revision, weight);
+        additionRevision = -1;
+        removalRevision = -1;
     }
 
     public void addChild(Entity entity) {
-        children.add(entity);
+        addChild(children.size(), entity);
+    }
+
+    public void addChild(int index, Entity entity) {
+        children.add(index, entity);
+        entity.parent = this;
+        // A cached size implies cached sizes below it, so the walk can stop at the first empty one
+        for (Entity ancestor = this; ancestor != null && ancestor.subtreeSize != 0; ancestor = ancestor.parent) {
+            ancestor.subtreeSize = 0;
+        }
+    }
+
+    public WeightStore getWeights() {
+        return weights;
     }
 
-    public List<Double> getWeightList() {
-        return weightList;
+    public int getRow() {
+        return row;
     }
 
     public List<Entity> getChildren() {
         return children;
     }
 
+    // Number of entities in this subtree, including this one
+    public int getSubtreeSize() {
+        if (subtreeSize == 0) {
+            int size = 1;
+            for (Entity child : children) {
+                size += child.getSubtreeSize();
+            }
+            subtreeSize = size;
+        }
+        return subtreeSize;
+    }
+
     public boolean isLeaf() {
         return children.size() == 0;
     }
 
     public int getAdditionRevision() {
-        for (int i = 0; i <  weightList.size(); ++i) {
-            if (weightList.get(i) > 0.0) {
-                return i;
-            }
+        if (additionRevision == -1) {
+            additionRevision = weights.getAdditionRevision(row);
+        }
+        return additionRevision;
+    }
+
+    public int getRemovalRevision() {
+        if (removalRevision == -1) {
+            removalRevision = weights.getRemovalRevision(row);
         }
-        return weightList.size();
+        return removalRevision;
     }
 
     @Override
     public String toString() {
         return  "id='" + id + '\'' +
-                ", weightList=" + weightList;
+                ", weightList=" + weights.rowToString(row);
     }
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+package com.ufrgs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Interns entity ids read as raw bytes. An id is decoded into a String only when it is asked
+// for; lookups hash and compare the bytes in place. Not thread safe: concurrent parsers fill a
+// dictionary per revision and merge it into the shared one in revision order.
+public class IdDictionary {
+
+    private byte[][] keys = new byte[16][];
+    private String[] ids = new String[16];
+    private int[] hashes = new int[16];
+    private int[] table = new int[64]; // Open addressing, holds index + 1
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public String getId(int index) {
+        if (ids[index] == null) {
+            ids[index] = new String(keys[index], StandardCharsets.UTF_8);
+        }
+        return ids[index];
+    }
+
+    // Index of the id stored in buffer[offset, offset + length), added if absent
+    public int lookup(ByteBuffer buffer, int offset, int length) {
+
+        int hash = hash(buffer, offset, length);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (index == -1) {
+                byte[] key = new byte[length];
+                for (int i = 0; i < length; ++i) {
+                    key[i] = buffer.get(offset + i);
+                }
+                return add(key, null, hash, slot);
+            }
+            if (hashes[index] == hash && matches(keys[index], buffer, offset, length)) {
+                return index;
+            }
+        }
+    }
+
+    // Index of the id at otherIndex of another dictionary, added if absent. The key bytes and
+    // decoded id are shared, not copied.
+    public int lookup(IdDictionary other, int otherIndex) {
+
+        byte[] key = other.keys[otherIndex];
+        int hash = other.hashes[otherIndex];
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (index == -1) {
+                return add(key, other.ids[otherIndex], hash, slot);
+            }
+            if (hashes[index] == hash && Arrays.equals(keys[index], key)) {
+                return index;
+            }
+        }
+    }
+
+    private int add(byte[] key, String id, int hash, int slot) {
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * size);
+            ids = Arrays.copyOf(ids, 2 * size);
+            hashes = Arrays.copyOf(hashes, 2 * size);
+        }
+        keys[size] = key;
+        hashes[size] = hash;
+        ids[size] = id;
+        table[slot] = ++size;
+
+        // Keep the load factor under one half
+        if (2 * size > table.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    private void rehash() {
+        table = new int[2 * table.length];
+        int mask = table.length - 1;
+        for (int index = 0; index < size; ++index) {
+            int slot = hashes[index] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = index + 1;
+        }
+    }
+
+    private static int hash(ByteBuffer buffer, int offset, int length) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < length; ++i) {
+            hash = (hash ^ buffer.get(offset + i)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer buffer, int offset, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (key[i] != buffer.get(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
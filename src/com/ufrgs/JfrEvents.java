@@ -0,0 +1,78 @@
+package com.ufrgs;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+// A custom JFR event type, created through jdk.jfr.EventFactory so the code still builds for
+// Java 8. On runtimes without JFR create returns null and nothing is recorded. Events are only
+// kept by an active recording, e.g. java -XX:StartFlightRecording=filename=run.jfr ...
+class JfrEvents {
+
+    private final Object factory;
+    private final Method newEvent, begin, set, commit;
+
+    private JfrEvents(Object factory) throws ReflectiveOperationException {
+        this.factory = factory;
+        this.newEvent = factory.getClass().getMethod("newEvent");
+        Class<?> eventClass = Class.forName("jdk.jfr.Event");
+        this.begin = eventClass.getMethod("begin");
+        this.set = eventClass.getMethod("set", int.class, Object.class);
+        this.commit = eventClass.getMethod("commit");
+    }
+
+    // Event type with the given name and fields, or null if the runtime has no JFR
+    static JfrEvents create(String name, String label, String[] fieldNames, Class<?>[] fieldTypes) {
+        try {
+            Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+            Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+            List<Object> annotations = new ArrayList<>();
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), name));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), label));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"Squarified Treemap"}));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), false));
+
+            Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+            List<Object> fields = new ArrayList<>();
+            for (int i = 0; i < fieldNames.length; ++i) {
+                fields.add(field.newInstance(fieldTypes[i], fieldNames[i]));
+            }
+
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            return new JfrEvents(factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields));
+        } catch (ClassNotFoundException e) {
+            return null; // Java 8
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // A started event, to be handed to commit when the work is done
+    Object begin() {
+        try {
+            Object event = newEvent.invoke(factory);
+            begin.invoke(event);
+            return event;
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Ends the event with the field values in declaration order
+    void commit(Object event, Object... values) {
+        if (event == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < values.length; ++i) {
+                set.invoke(event, i, values[i]);
+            }
+            commit.invoke(event);
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+        }
+    }
+}
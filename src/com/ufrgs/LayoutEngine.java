@@ -0,0 +1,47 @@
+package com.ufrgs;
+
+import java.io.IOException;
+
+// Entry point for embedding the layout in another program. An engine only holds its options, so
+// one engine can lay out any number of histories one after another, and nothing is written
+// unless a sink or a checkpoint directory asks for it. Runs of an engine share its options and
+// their Metrics, so histories laid out at the same time need an engine each.
+//
+//   LayoutEngine engine = new LayoutEngine(new LayoutOptions().setLayoutThreads(4));
+//   try (TreemapManager revisions = engine.layout(engine.parse(inputDir), new Rectangle(1000, 800))) {
+//       while (revisions.hasNext()) {
+//           RectangleSnapshot snapshot = revisions.next();
+//           ...
+//       }
+//   }
+public class LayoutEngine {
+
+    private final LayoutOptions options;
+
+    public LayoutEngine(LayoutOptions options) {
+        this.options = options;
+    }
+
+    public LayoutOptions getOptions() {
+        return options;
+    }
+
+    // Hierarchy and weights of every revision file in the directory
+    public Entity parse(String inputDir) throws IOException {
+        return new Parser(options).buildHierarchy(inputDir);
+    }
+
+    // Iterates the snapshots of every revision, each one laid out when it is asked for
+    public TreemapManager layout(Entity root, Rectangle canvas) {
+        return new TreemapManager(root, canvas, options);
+    }
+
+    public TreemapManager layout(StreamingParser parser, Rectangle canvas) {
+        return new TreemapManager(parser, canvas, options);
+    }
+
+    // Lays out every revision and hands the snapshots to the sink, which is closed at the end
+    public void layout(Entity root, Rectangle canvas, RectangleSink sink) throws IOException {
+        layout(root, canvas).run(sink);
+    }
+}
@@ -0,0 +1,80 @@
+package com.ufrgs;
+
+// Settings of one layout run. Every part of the engine reads them from here instead of Main, so
+// runs with different settings can share a JVM. The defaults match the command line defaults.
+public class LayoutOptions {
+
+    boolean sparseWeights = false;
+    int parserThreads = 1;
+    boolean batchedInsertion = false;
+    int layoutThreads = 1;
+    int writerThreads = 0;
+    String checkpointDir = null;
+    int checkpointInterval = 100;
+    int firstRevision = 0;
+    int lastRevision = Integer.MAX_VALUE;
+    Metrics metrics = new Metrics(false);
+
+    // Run-length encoded weights, for histories where most files live briefly
+    public LayoutOptions setSparseWeights(boolean sparseWeights) {
+        this.sparseWeights = sparseWeights;
+        return this;
+    }
+
+    public LayoutOptions setParserThreads(int parserThreads) {
+        this.parserThreads = parserThreads;
+        return this;
+    }
+
+    // One layout pass for all files added in a revision, see Treemap.addItemsBatched
+    public LayoutOptions setBatchedInsertion(boolean batchedInsertion) {
+        this.batchedInsertion = batchedInsertion;
+        return this;
+    }
+
+    public LayoutOptions setLayoutThreads(int layoutThreads) {
+        this.layoutThreads = layoutThreads;
+        return this;
+    }
+
+    // Threads handing snapshots to a sink while layout goes on, see RectangleWriter
+    public LayoutOptions setWriterThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+        return this;
+    }
+
+    // Directory the layout state is saved to and resumed from, null for none
+    public LayoutOptions setCheckpointDir(String checkpointDir) {
+        this.checkpointDir = checkpointDir;
+        return this;
+    }
+
+    public LayoutOptions setCheckpointInterval(int checkpointInterval) {
+        if (checkpointInterval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be at least 1 - " + checkpointInterval);
+        }
+        this.checkpointInterval = checkpointInterval;
+        return this;
+    }
+
+    // Earlier revisions are laid out, or resumed from a checkpoint, but not returned
+    public LayoutOptions setFirstRevision(int firstRevision) {
+        this.firstRevision = firstRevision;
+        return this;
+    }
+
+    public LayoutOptions setLastRevision(int lastRevision) {
+        this.lastRevision = lastRevision;
+        return this;
+    }
+
+    // Collects the metrics of runs with these options, one run at a time
+    public LayoutOptions setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+}
@@ -1,15 +1,50 @@
 package com.ufrgs;
 
+import java.io.IOException;
 import java.util.List;
 
 public class Main {
 
     static String inputDir;
     static String outputDir;
+    static boolean sparseWeights = false;
+    static boolean streaming = false;
+    static int parserThreads = 1;
+    static boolean batchedInsertion = false;
+    static int layoutThreads = 1;
+    static int writerThreads = 0;
+    static String outputFormat = "rect";
+    static int keyframeInterval = 25;
+    static double deltaEpsilon = 0;
+    static String checkpointDir = null;
+    static int checkpointInterval = 100;
+    static int firstRevision = 0;
+    static int lastRevision = Integer.MAX_VALUE;
+    static boolean metrics = false;
+    static String metricsFile = null;
+    static int jobs = Runtime.getRuntime().availableProcessors();
+    static long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
 
     public static void main(String[] args) {
 
-        if (args.length == 4) { // As specified by Max
+        if (args.length >= 2 && args[0].equals("--batch") && parseOptions(args, 2)) {
+
+            if (streaming || checkpointDir != null) {
+                System.out.println("--stream and --checkpoint-dir can not be used with --batch");
+                System.exit(-1);
+            }
+            try {
+                List<BatchRunner.Job> manifest = BatchRunner.readManifest(args[1]);
+                BatchRunner runner = new BatchRunner(jobs, memoryBudget, Main::layoutOptions, sinkFactory(), metricsFile);
+                if (runner.run(manifest) > 0) {
+                    System.exit(1);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+
+        } else if (args.length >= 4 && parseOptions(args, 4)) { // As specified by Max, plus optional flags
 
             // Generate file with rectangles
             inputDir = args[0];
@@ -17,17 +52,137 @@ public class Main {
             int height = Integer.valueOf(args[2]);
             outputDir = args[3];
 
-            Entity root = Parser.buildHierarchy(inputDir);
+            LayoutOptions options = layoutOptions();
+            LayoutEngine engine = new LayoutEngine(options);
+
             Rectangle baseRectangle = new Rectangle(width, height);
-            new TreemapManager(root, baseRectangle);
+            try {
+                TreemapManager manager;
+                if (streaming) {
+                    manager = engine.layout(new StreamingParser(inputDir, options), baseRectangle);
+                } else {
+                    manager = engine.layout(engine.parse(inputDir), baseRectangle);
+                }
+                manager.run(sinkFactory().create(outputDir));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+            options.getMetrics().report(metricsFile);
 
         } else {
             argsError();
         }
     }
 
+    // Options of the command line, with metrics of their own so every run gets separate ones
+    static LayoutOptions layoutOptions() {
+        return new LayoutOptions()
+                .setSparseWeights(sparseWeights)
+                .setParserThreads(parserThreads)
+                .setBatchedInsertion(batchedInsertion)
+                .setLayoutThreads(layoutThreads)
+                .setWriterThreads(writerThreads)
+                .setCheckpointDir(checkpointDir)
+                .setCheckpointInterval(checkpointInterval)
+                .setFirstRevision(firstRevision)
+                .setLastRevision(lastRevision)
+                .setMetrics(new Metrics(metrics || metricsFile != null));
+    }
+
+    // Runs that start at a later revision only replace the files of the revisions they write
+    static SinkFactory sinkFactory() {
+        return new SinkFactory()
+                .setFormat(outputFormat)
+                .setKeyframeInterval(keyframeInterval)
+                .setDeltaEpsilon(deltaEpsilon)
+                .setKeepExistingFiles(firstRevision > 0);
+    }
+
+    private static boolean parseOptions(String[] args, int first) {
+        for (int i = first; i < args.length; ++i) {
+            if (args[i].equals("--sparse")) {
+                sparseWeights = true;
+            } else if (args[i].equals("--stream")) {
+                streaming = true;
+            } else if (args[i].startsWith("--parser-threads=")) {
+                parserThreads = Integer.valueOf(args[i].substring("--parser-threads=".length()));
+            } else if (args[i].startsWith("--layout-threads=")) {
+                layoutThreads = Integer.valueOf(args[i].substring("--layout-threads=".length()));
+            } else if (args[i].startsWith("--writer-threads=")) {
+                writerThreads = Integer.valueOf(args[i].substring("--writer-threads=".length()));
+            } else if (args[i].matches("--format=(rect|binary|delta|container)")) {
+                outputFormat = args[i].substring("--format=".length());
+            } else if (args[i].startsWith("--keyframe-interval=")) {
+                keyframeInterval = Integer.valueOf(args[i].substring("--keyframe-interval=".length()));
+            } else if (args[i].startsWith("--delta-epsilon=")) {
+                deltaEpsilon = Double.valueOf(args[i].substring("--delta-epsilon=".length()));
+            } else if (args[i].startsWith("--checkpoint-dir=")) {
+                checkpointDir = args[i].substring("--checkpoint-dir=".length());
+            } else if (args[i].startsWith("--checkpoint-interval=")) {
+                checkpointInterval = Integer.valueOf(args[i].substring("--checkpoint-interval=".length()));
+                if (checkpointInterval <= 0) {
+                    System.out.println("--checkpoint-interval must be at least 1");
+                    return false;
+                }
+            } else if (args[i].startsWith("--from-revision=")) {
+                firstRevision = Integer.valueOf(args[i].substring("--from-revision=".length()));
+            } else if (args[i].startsWith("--to-revision=")) {
+                lastRevision = Integer.valueOf(args[i].substring("--to-revision=".length()));
+            } else if (args[i].equals("--metrics")) {
+                metrics = true;
+            } else if (args[i].startsWith("--metrics-file=")) {
+                metricsFile = args[i].substring("--metrics-file=".length());
+            } else if (args[i].startsWith("--jobs=")) {
+                jobs = Integer.valueOf(args[i].substring("--jobs=".length()));
+            } else if (args[i].startsWith("--memory-budget=")) {
+                memoryBudget = Long.valueOf(args[i].substring("--memory-budget=".length())) << 20;
+            } else if (args[i].equals("--batch-insert")) {
+                batchedInsertion = true;
+            } else {
+                System.out.println("Unknown option " + args[i]);
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static void argsError() {
-        System.out.println("Usage: \njava -cp ./bin com.ufrgs.Main input_dir width height output_dir");
-        System.out.println("Width and Height are given in pixels (integers).");
+        System.out.println("Usage: \njava -cp ./bin com.ufrgs.Main input_dir width height output_dir [options]");
+        System.out.println("java -cp ./bin com.ufrgs.Main --batch manifest [options]");
+        System.out.println("Width and Height are given in pixels (integers). Each line of a manifest is a job,");
+        System.out.println("input_dir,width,height,output_dir, all of them laid out in this JVM with the same options.");
+        System.out.println("Options:");
+        System.out.println("  --sparse                Run-length encoded weights, for histories where most files live briefly");
+        System.out.println("  --stream                Lay out revisions as they are added to input_dir, until a file named");
+        System.out.println("                          END appears. With - as input_dir, revisions are read from stdin,");
+        System.out.println("                          each one ended by an empty line. Only the latest weights are kept.");
+        System.out.println("  --parser-threads=N      Number of revision files parsed concurrently (default 1)");
+        System.out.println("  --batch-insert          Insert all files added in a revision with one layout pass.");
+        System.out.println("                          Much faster on mass imports, aspect ratios are slightly worse.");
+        System.out.println("  --layout-threads=N      Number of threads laying out nested treemaps (default 1)");
+        System.out.println("  --writer-threads=N      Write .rect files on N threads while layout goes on (default 0)");
+        System.out.println("  --format=rect|binary    Write t<revision>.rect text files (default), or columnar t<revision>.bin files");
+        System.out.println("  --format=delta          Write a .rect keyframe every K revisions and only the changes in");
+        System.out.println("                          between, expand with com.ufrgs.DeltaRectangleReader");
+        System.out.println("  --format=container      Append every revision to a single indexed revisions.rects file,");
+        System.out.println("                          read it with com.ufrgs.ContainerReader");
+        System.out.println("  --keyframe-interval=K   Revisions between delta keyframes (default 25)");
+        System.out.println("  --delta-epsilon=E       Smallest movement written to a delta, in pixels (default 0, exact).");
+        System.out.println("                          Any weight change moves every rectangle a little, try 0.5");
+        System.out.println("  --checkpoint-dir=DIR    Save the layout state to DIR every K revisions, and resume from it");
+        System.out.println("  --checkpoint-interval=K Revisions between checkpoints (default 100)");
+        System.out.println("  --from-revision=R       Only write revisions from R on, resuming from the latest checkpoint");
+        System.out.println("                          at or before R when there is one");
+        System.out.println("  --to-revision=R         Stop after revision R");
+        System.out.println("  --metrics               Time each phase, count blocks, insertions and rectangles, print the");
+        System.out.println("                          totals at the end and emit com.ufrgs.Phase/Revision JFR events");
+        System.out.println("  --metrics-file=FILE     Also write the totals and per-revision values to FILE, as CSV if it");
+        System.out.println("                          ends in .csv and as JSON otherwise. Per-revision values stop after");
+        System.out.println("                          10000 revisions. With --batch, FILE is written to the output_dir");
+        System.out.println("                          of every job.");
+        System.out.println("  --jobs=N                Jobs of a batch laid out at the same time (default: processors)");
+        System.out.println("  --memory-budget=MB      Jobs of a batch only start while the estimated weights of all");
+        System.out.println("                          running jobs fit in MB (default 3/4 of the maximum heap)");
     }
 }
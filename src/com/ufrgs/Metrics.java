@@ -0,0 +1,308 @@
+package com.ufrgs;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Phase timers, counters and per-revision records of a run, turned on with --metrics or by
+// handing an enabled instance to LayoutOptions. Every call checks the enabled flag first, so with
+// metrics off the instrumented code only reads a field. Phase times are inclusive, layout
+// contains insertion, coordinates and aspectRatios.
+// Coarse phases are also JFR events (com.ufrgs.Phase, com.ufrgs.Revision) and get allocation
+// estimates, which count the thread that ran the phase only. Inner phases run once per treemap
+// and are only timed. Per-revision values are kept for the first MAX_REVISION_RECORDS revisions,
+// so long histories don't grow the heap; later ones are only in the totals and JFR events.
+public class Metrics {
+
+    public enum Phase {
+        PARSE("parse", true),
+        HIERARCHY("hierarchy", true),
+        SQUARIFY("squarify", true),
+        LAYOUT("layout", true),
+        INSERTION("insertion", false),
+        COORDINATES("coordinates", false),
+        ASPECT_RATIOS("aspectRatios", false),
+        SNAPSHOT("snapshot", true),
+        WRITE("write", true),
+        CHECKPOINT("checkpoint", true);
+
+        final String name;
+        final boolean coarse;
+
+        Phase(String name, boolean coarse) {
+            this.name = name;
+            this.coarse = coarse;
+        }
+    }
+
+    public enum Counter {
+        ROWS_PARSED("rowsParsed"),
+        BLOCKS_VISITED("blocksVisited"),
+        INSERTIONS("insertions"),
+        RECTANGLES_WRITTEN("rectanglesWritten"),
+        BYTES_WRITTEN("bytesWritten"),
+        CHECKPOINTS_SKIPPED("checkpointsSkipped");
+
+        final String name;
+
+        Counter(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final int PHASES = Phase.values().length;
+    static final int MAX_REVISION_RECORDS = 10_000;
+
+    private final boolean enabled;
+    private final LongAdder[] phaseCounts = newAdders(PHASES);
+    private final LongAdder[] phaseNanos = newAdders(PHASES);
+    private final LongAdder[] phaseBytes = newAdders(PHASES);
+    private final LongAdder[] counters = newAdders(Counter.values().length);
+    private final List<RevisionRecord> revisions = new ArrayList<>(); // Layout thread only
+    private int numberOfRevisions = 0;
+    private RevisionRecord currentRevision;
+    private final long startNanos = System.nanoTime();
+    private com.sun.management.ThreadMXBean threadBean; // Null if allocations can't be measured
+    private JfrEvents phaseEvents, revisionEvents;
+
+    // JFR event types are registered once per JVM, the first time metrics are enabled
+    private static class Events {
+        static final JfrEvents PHASE = JfrEvents.create("com.ufrgs.Phase", "Treemap Phase",
+                new String[]{"phase", "revision", "allocatedBytes"},
+                new Class<?>[]{String.class, int.class, long.class});
+        static final JfrEvents REVISION = JfrEvents.create("com.ufrgs.Revision", "Treemap Revision",
+                new String[]{"revision", "rectangles", "insertions", "blocksVisited", "allocatedBytes"},
+                new Class<?>[]{int.class, long.class, long.class, long.class, long.class});
+    }
+
+    // A running phase, null when metrics are off
+    public static class Timer {
+        final Phase phase;
+        final int revision;
+        final long startNanos;
+        final long startBytes;
+        final Object event;
+
+        private Timer(Phase phase, int revision, Object event, long startBytes) {
+            this.phase = phase;
+            this.revision = revision;
+            this.event = event;
+            this.startBytes = startBytes;
+            this.startNanos = System.nanoTime();
+        }
+    }
+
+    // Per-revision values, from the start of its layout until its snapshot was taken
+    private static class RevisionRecord {
+        int revision;
+        long nanos, allocatedBytes, rectangles, insertions, blocksVisited;
+        Object event;
+    }
+
+    public Metrics(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            return;
+        }
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (!threadBean.isThreadAllocatedMemorySupported() || !threadBean.isThreadAllocatedMemoryEnabled()) {
+                threadBean = null;
+            }
+        }
+        phaseEvents = Events.PHASE;
+        revisionEvents = Events.REVISION;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Timer start(Phase phase) {
+        return start(phase, -1);
+    }
+
+    public Timer start(Phase phase, int revision) {
+        if (!enabled) {
+            return null;
+        }
+        Object event = phase.coarse && phaseEvents != null ? phaseEvents.begin() : null;
+        return new Timer(phase, revision, event, phase.coarse ? allocatedBytes() : 0);
+    }
+
+    public void stop(Timer timer) {
+        if (timer == null) {
+            return;
+        }
+        long nanos = System.nanoTime() - timer.startNanos;
+        int phase = timer.phase.ordinal();
+        phaseCounts[phase].increment();
+        phaseNanos[phase].add(nanos);
+        if (timer.phase.coarse) {
+            long bytes = allocatedBytes() - timer.startBytes;
+            phaseBytes[phase].add(bytes);
+            if (phaseEvents != null) {
+                phaseEvents.commit(timer.event, timer.phase.name, timer.revision, bytes);
+            }
+        }
+    }
+
+    public void count(Counter counter, long amount) {
+        if (enabled) {
+            counters[counter.ordinal()].add(amount);
+        }
+    }
+
+    // Called by the layout thread around each revision
+    void startRevision(int revision) {
+        if (!enabled) {
+            return;
+        }
+        RevisionRecord record = new RevisionRecord();
+        record.revision = revision;
+        record.event = revisionEvents != null ? revisionEvents.begin() : null;
+        record.allocatedBytes = -allocatedBytes();
+        record.rectangles = -counters[Counter.RECTANGLES_WRITTEN.ordinal()].sum();
+        record.insertions = -counters[Counter.INSERTIONS.ordinal()].sum();
+        record.blocksVisited = -counters[Counter.BLOCKS_VISITED.ordinal()].sum();
+        record.nanos = -System.nanoTime();
+        currentRevision = record;
+    }
+
+    void endRevision() {
+        RevisionRecord record = currentRevision;
+        if (record == null) {
+            return;
+        }
+        record.nanos += System.nanoTime();
+        record.allocatedBytes += allocatedBytes();
+        record.rectangles += counters[Counter.RECTANGLES_WRITTEN.ordinal()].sum();
+        record.insertions += counters[Counter.INSERTIONS.ordinal()].sum();
+        record.blocksVisited += counters[Counter.BLOCKS_VISITED.ordinal()].sum();
+        if (revisionEvents != null) {
+            revisionEvents.commit(record.event, record.revision, record.rectangles, record.insertions,
+                    record.blocksVisited, record.allocatedBytes);
+        }
+        record.event = null;
+        if (revisions.size() < MAX_REVISION_RECORDS) {
+            revisions.add(record);
+        }
+        numberOfRevisions++;
+        currentRevision = null;
+    }
+
+    // Prints the totals and writes the summary to the file, if there is one
+    public void report(String fileName) {
+        if (!enabled) {
+            return;
+        }
+        long wallNanos = System.nanoTime() - startNanos;
+
+        System.out.println(String.format(Locale.ROOT, "%-18s %8s %12s %16s", "phase", "count", "time (ms)", "allocated (MB)"));
+        for (Phase phase : Phase.values()) {
+            int i = phase.ordinal();
+            System.out.println(String.format(Locale.ROOT, "%-18s %8d %12.1f %16s", phase.name, phaseCounts[i].sum(),
+                    phaseNanos[i].sum() / 1e6, phase.coarse && threadBean != null ? String.format(Locale.ROOT, "%.1f", phaseBytes[i].sum() / 1e6) : "-"));
+        }
+        for (Counter counter : Counter.values()) {
+            System.out.println(String.format(Locale.ROOT, "%-18s %8d", counter.name, counters[counter.ordinal()].sum()));
+        }
+        System.out.println(String.format(Locale.ROOT, "%d revisions in %.1f ms", numberOfRevisions, wallNanos / 1e6));
+
+        if (fileName != null) {
+            writeSummary(fileName);
+        }
+    }
+
+    // Writes the totals and per-revision values, as CSV if the name ends in .csv and as JSON
+    // otherwise
+    public void writeSummary(String fileName) {
+        if (!enabled) {
+            return;
+        }
+        long wallNanos = System.nanoTime() - startNanos;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8))) {
+            if (fileName.endsWith(".csv")) {
+                writeCsv(out, wallNanos);
+            } else {
+                writeJson(out, wallNanos);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // One row per phase, counter and revision value. Empty cells don't apply to the row.
+    private void writeCsv(PrintWriter out, long wallNanos) {
+        out.println("scope,name,revision,count,nanos,allocated_bytes");
+        out.println("run,wall,,," + wallNanos + ",");
+        out.println("run,revisions,," + numberOfRevisions + ",,");
+        for (Phase phase : Phase.values()) {
+            int i = phase.ordinal();
+            out.println("phase," + phase.name + ",," + phaseCounts[i].sum() + "," + phaseNanos[i].sum() + ","
+                    + (phase.coarse && threadBean != null ? phaseBytes[i].sum() : ""));
+        }
+        for (Counter counter : Counter.values()) {
+            out.println("counter," + counter.name + ",," + counters[counter.ordinal()].sum() + ",,");
+        }
+        for (RevisionRecord record : revisions) {
+            String prefix = "revision,%s," + record.revision + ",";
+            out.println(String.format(prefix, "time") + "1," + record.nanos + "," + (threadBean != null ? record.allocatedBytes : ""));
+            out.println(String.format(prefix, Counter.RECTANGLES_WRITTEN.name) + record.rectangles + ",,");
+            out.println(String.format(prefix, Counter.INSERTIONS.name) + record.insertions + ",,");
+            out.println(String.format(prefix, Counter.BLOCKS_VISITED.name) + record.blocksVisited + ",,");
+        }
+    }
+
+    private void writeJson(PrintWriter out, long wallNanos) {
+        out.println("{");
+        out.println("  \"wallNanos\": " + wallNanos + ",");
+        out.println("  \"allocationsMeasured\": " + (threadBean != null) + ",");
+        out.println("  \"numberOfRevisions\": " + numberOfRevisions + ",");
+        out.println("  \"phases\": {");
+        for (Phase phase : Phase.values()) {
+            int i = phase.ordinal();
+            out.print("    \"" + phase.name + "\": {\"count\": " + phaseCounts[i].sum() + ", \"nanos\": " + phaseNanos[i].sum());
+            if (phase.coarse) {
+                out.print(", \"allocatedBytes\": " + phaseBytes[i].sum());
+            }
+            out.println(i < PHASES - 1 ? "}," : "}");
+        }
+        out.println("  },");
+        out.println("  \"counters\": {");
+        Counter[] values = Counter.values();
+        for (int i = 0; i < values.length; ++i) {
+            out.println("    \"" + values[i].name + "\": " + counters[i].sum() + (i < values.length - 1 ? "," : ""));
+        }
+        out.println("  },");
+        out.println("  \"revisions\": [");
+        for (int i = 0; i < revisions.size(); ++i) {
+            RevisionRecord record = revisions.get(i);
+            out.println("    {\"revision\": " + record.revision + ", \"nanos\": " + record.nanos
+                    + ", \"allocatedBytes\": " + record.allocatedBytes + ", \"rectangles\": " + record.rectangles
+                    + ", \"insertions\": " + record.insertions + ", \"blocksVisited\": " + record.blocksVisited
+                    + (i < revisions.size() - 1 ? "}," : "}"));
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+
+    private long allocatedBytes() {
+        return threadBean != null ? threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; ++i) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
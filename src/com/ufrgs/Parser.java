@@ -1,92 +1,145 @@
 package com.ufrgs;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Reads a directory of revision files. The weights of the last parseCSVs call are kept for
+// buildHierarchy, so use one parser per history.
 public class Parser {
 
-    private static int numberOfRevisions;
+    private final LayoutOptions options;
+    private final Metrics metrics;
+    private int numberOfRevisions;
+    private WeightStore weights;
+
+    public Parser(LayoutOptions options) {
+        this.options = options;
+        this.metrics = options.metrics;
+    }
 
-    static List<Entity> parseCSVs(String directory) {
+    List<Entity> parseCSVs(String directory) throws IOException {
 
         List<Entity> entityList = new ArrayList<>();
+        IdDictionary dictionary = new IdDictionary();
+        List<Entity> entityIndex = new ArrayList<>(); // dictionary index -> entity, one lookup per row
 
         File[] fileList = new File(directory).listFiles();
         List<String> fileNames = new ArrayList<>();
 
-        if (fileList != null) {
-            for (File file : fileList) {
-                if (file.isFile()) {
-                    try {
-                        fileNames.add(file.getCanonicalPath());
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+        if (fileList == null) {
+            throw new IOException("Invalid input dir path - " + directory);
+        }
+        for (File file : fileList) {
+            if (file.isFile()) {
+                fileNames.add(file.getCanonicalPath());
             }
-        } else {
-            System.err.println("Invalid input dir path.");
-            System.exit(-1);
         }
 
+        Metrics.Timer timer = metrics.start(Metrics.Phase.PARSE);
         fileNames.sort(String::compareTo);
         fileNames.sort((o1, o2) -> Integer.valueOf(o1.length()).compareTo(Integer.valueOf(o2.length())));
 
-        try {
+        numberOfRevisions = fileNames.size();
+        if (options.sparseWeights) {
+            weights = new SparseWeightMatrix(numberOfRevisions);
+        } else {
+            weights = new WeightMatrix(numberOfRevisions);
+        }
 
-            numberOfRevisions = fileNames.size();
+        if (options.parserThreads > 1) {
+            // Parse files concurrently, but merge them in revision order so entities are created
+            // exactly as in the sequential parser. At most two files per thread are kept in memory.
+            // Each file gets its own dictionary, so workers never wait on each other.
+            ExecutorService executor = Executors.newFixedThreadPool(options.parserThreads);
+            try {
+                Deque<Future<CsvTokenizer.Rows>> pending = new ArrayDeque<>();
+                int submitted = 0;
+                for (int revision = 0; revision < numberOfRevisions; ++revision) {
+                    while (submitted < numberOfRevisions && pending.size() < 2 * options.parserThreads) {
+                        String fileName = fileNames.get(submitted++);
+                        pending.add(executor.submit(() -> CsvTokenizer.tokenize(fileName, new IdDictionary())));
+                    }
+                    merge(pending.poll().get(), revision, dictionary, entityIndex, entityList);
+                }
+            } catch (ExecutionException e) {
+                // Fail with the worker's exception, as the sequential parser does
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while parsing " + directory);
+            } finally {
+                executor.shutdownNow();
+            }
+        } else {
             for (int revision = 0; revision < numberOfRevisions; ++revision) {
+                merge(CsvTokenizer.tokenize(fileNames.get(revision), dictionary), revision, dictionary, entityIndex, entityList);
+            }
+        }
 
-                BufferedReader bufferedReader = new BufferedReader(new FileReader(fileNames.get(revision)));
-                String currentLine = bufferedReader.readLine();
-                String[] header = currentLine.split(",");
+        metrics.stop(timer);
+        return entityList;
+    }
 
-                if (!header[0].equals("id") || !header[1].equals("weight")) {
-                    System.err.println("Error parsing header - " + fileNames.get(revision));
-                    System.exit(-1);
-                }
+    private void merge(CsvTokenizer.Rows rows, int revision, IdDictionary dictionary,
+                       List<Entity> entityIndex, List<Entity> entityList) {
 
-                while ((currentLine = bufferedReader.readLine()) != null) {
-
-                    String[] split = currentLine.split(",");
-
-                    if (split.length != 2) {
-                        System.err.println("Error parsing csv file");
-                        System.exit(-1);
-                    } else {
-                        String id = split[0];
-                        double weight = Double.parseDouble(split[1]);
-                        if (contains(entityList, id)) {
-                            Entity entity = find(entityList, id);
-                            entity.setWeight(weight, revision);
-                        } else {
-                            Entity entity = new Entity(id, numberOfRevisions);
-                            entity.setWeight(weight, revision);
-                            entityList.add(entity);
-                        }
-                    }
-                }
+        metrics.count(Metrics.Counter.ROWS_PARSED, rows.size);
+
+        // Global index of each id of a revision tokenized with its own dictionary
+        int[] globalIds = null;
+        if (rows.dictionary != dictionary) {
+            globalIds = new int[rows.dictionary.size()];
+            for (int i = 0; i < globalIds.length; ++i) {
+                globalIds[i] = dictionary.lookup(rows.dictionary, i);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
 
-        return entityList;
+        for (int i = 0; i < rows.size; ++i) {
+            int id = globalIds == null ? rows.ids[i] : globalIds[rows.ids[i]];
+            while (entityIndex.size() <= id) {
+                entityIndex.add(null);
+            }
+            Entity entity = entityIndex.get(id);
+            if (entity == null) {
+                entity = new Entity(dictionary.getId(id), weights);
+                entityIndex.set(id, entity);
+                entityList.add(entity);
+            }
+            entity.setWeight(rows.weights[i], revision);
+        }
     }
 
-    public static Entity buildHierarchy(String csvFile) {
+    public Entity buildHierarchy(String csvFile) throws IOException {
+        return buildHierarchy(parseCSVs(csvFile));
+    }
 
-        List<Entity> entityList = parseCSVs(csvFile);
+    // Directories and weight sums for the entities of the last parseCSVs call
+    Entity buildHierarchy(List<Entity> entityList) {
 
-        List<Entity> auxList = new ArrayList<>();
-        Entity root = new Entity("", numberOfRevisions);
-        auxList.add(root);
+        Metrics.Timer timer = metrics.start(Metrics.Phase.HIERARCHY);
+        Entity root = new Entity("", weights);
+        // Children of each inner node, indexed by the path that leads to them
+        Map<String, Entity> pathIndex = new HashMap<>();
 
         // Lexicographic sort
         entityList.sort(Comparator.comparing(Entity::getId));
@@ -101,57 +154,40 @@ public class Parser {
                 String prefix = entity.getId().substring(0, dividerIndex);
                 String[] parents = prefix.split("/");
 
+                StringBuilder path = new StringBuilder();
                 for (String parentId : parents) {
-                    if (contains(current.getChildren(),parentId)) {
-                        current = find(current.getChildren(),parentId);
-                    } else {
-                        Entity parent = new Entity(parentId, numberOfRevisions);
+                    if (path.length() > 0) {
+                        path.append('/');
+                    }
+                    path.append(parentId);
+                    String parentPath = path.toString();
+
+                    Entity parent = pathIndex.get(parentPath);
+                    if (parent == null) {
+                        parent = new Entity(parentId, weights);
                         current.addChild(parent);
-                        current = parent;
+                        pathIndex.put(parentPath, parent);
                     }
+                    current = parent;
                 }
                 current.addChild(entity);
             } else {
                 root.addChild(entity);
+                // A top level leaf shadows a directory of the same name, as the linear search did
+                pathIndex.putIfAbsent(entity.getId(), entity);
             }
         }
 
         sumTree(root);
+        metrics.stop(timer);
         return root;
     }
 
-    private static List<Double> sumTree(Entity entity) {
+    private void sumTree(Entity entity) {
 
-        if (entity.isLeaf()) {
-            return entity.getWeightList();
-        } else {
-            for (Entity child : entity.getChildren()) {
-                List<Double> weightList = sumTree(child);
-                for (int revision = 0; revision < weightList.size(); ++revision) {
-                    entity.setWeight(entity.getWeight(revision) + weightList.get(revision), revision);
-                }
-            }
-            return entity.getWeightList();
-        }
-    }
-
-    private static Entity find(List<Entity> entityList, String entityId) {
-
-        for (int i = 0; i < entityList.size(); ++i) {
-            if (entityList.get(i).getId().equals(entityId)){
-                return entityList.get(i);
-            }
-        }
-        return null;
-    }
-
-    private static boolean contains(List<Entity> entityList, String id) {
-
-        for (Entity entity : entityList) {
-            if (entity.getId().equals(id)){
-                return true;
-            }
+        for (Entity child : entity.getChildren()) {
+            sumTree(child);
+            weights.addRow(child.getRow(), entity.getRow());
         }
-        return false;
     }
 }
@@ -0,0 +1,47 @@
+package com.ufrgs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.LongAdder;
+
+// One t<revision>.rect text file per revision
+public class RectFileSink implements RectangleSink {
+
+    private final String outputDir;
+    private final ThreadLocal<RectangleSerializer> serializer = ThreadLocal.withInitial(RectangleSerializer::new);
+    private final LongAdder bytesWritten = new LongAdder();
+
+    public RectFileSink(String outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    @Override
+    public void write(RectangleSnapshot snapshot) throws IOException {
+
+        Path file = Paths.get(String.format("%s/t%d.rect", outputDir, snapshot.getRevision()));
+
+        RectangleSerializer serializer = this.serializer.get();
+        serializer.serialize(snapshot);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(serializer.getBuffer(), 0, serializer.getLength());
+        }
+        bytesWritten.add(serializer.getLength());
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+}
@@ -0,0 +1,265 @@
+package com.ufrgs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Builds the contents of a .rect file in a reusable byte buffer. The output is byte-identical
+// to formatting every line with "%s,%.10f,%.10f,%.10f,%.10f", sorting the lines with
+// String.CASE_INSENSITIVE_ORDER and writing them with Files.write, but a revision allocates
+// nothing once the buffers have grown to size.
+// Instances are not thread safe, every writer thread needs its own.
+public class RectangleSerializer {
+
+    private static final long TEN_DIGITS = 10_000_000_000L;
+    // Longest %.10f output, for -Double.MAX_VALUE
+    static final int MAX_NUMBER_LENGTH = 1 + 309 + 1 + 10;
+    static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private byte[] buffer = new byte[1 << 16];
+    private int length = 0;
+
+    // ",x,y,width,height" of every rectangle, in snapshot order
+    private byte[] numbers = new byte[1 << 16];
+    private int[] numbersStart = new int[64];
+    private int[] order = new int[64], temp = new int[64];
+
+    private RectangleSnapshot snapshot;
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public void serialize(RectangleSnapshot snapshot) {
+
+        this.snapshot = snapshot;
+        int size = snapshot.size();
+        if (order.length < size + 1) {
+            numbersStart = new int[size + 1];
+            order = new int[size];
+            temp = new int[size];
+        }
+
+        // Numeric part of each line
+        int position = 0;
+        for (int i = 0; i < size; ++i) {
+            numbersStart[i] = position;
+            numbers = ensureCapacity(numbers, position + 4 * (1 + MAX_NUMBER_LENGTH));
+            numbers[position++] = ',';
+            position = formatFixed(snapshot.x[i], numbers, position);
+            numbers[position++] = ',';
+            position = formatFixed(snapshot.y[i], numbers, position);
+            numbers[position++] = ',';
+            position = formatFixed(snapshot.width[i], numbers, position);
+            numbers[position++] = ',';
+            position = formatFixed(snapshot.height[i], numbers, position);
+        }
+        numbersStart[size] = position;
+
+        // Stable sort, like List.sort
+        for (int i = 0; i < size; ++i) {
+            order[i] = i;
+        }
+        mergeSort(0, size);
+
+        length = 0;
+        for (int k = 0; k < size; ++k) {
+            int i = order[k];
+            String id = snapshot.ids[i];
+            int numbersLength = numbersStart[i + 1] - numbersStart[i];
+            buffer = ensureCapacity(buffer, length + 3 * id.length() + numbersLength + LINE_SEPARATOR.length);
+            length = writeUtf8(id, buffer, length);
+            System.arraycopy(numbers, numbersStart[i], buffer, length, numbersLength);
+            length += numbersLength;
+            System.arraycopy(LINE_SEPARATOR, 0, buffer, length, LINE_SEPARATOR.length);
+            length += LINE_SEPARATOR.length;
+        }
+        this.snapshot = null;
+    }
+
+    // Writes value as %.10f would, out needs room for MAX_NUMBER_LENGTH bytes. Java rounds the
+    // shortest decimal representation of the value half up rather than the exact binary value,
+    // so the exact scaled value is only trusted when it is further than one ulp from a rounding
+    // tie; the rare remaining cases, NaN, infinities and very large values go through
+    // String.format. See RectangleSerializerTest.
+    static int formatFixed(double value, byte[] out, int position) {
+
+        long bits = Double.doubleToRawLongBits(value);
+        int exponentBits = (int) ((bits >>> 52) & 0x7ff);
+        long mantissa = bits & 0xfffffffffffffL;
+        boolean negative = bits < 0;
+        double magnitude = Math.abs(value);
+
+        if (exponentBits == 0x7ff || magnitude >= (1 << 29)) {
+            return formatSlow(value, out, position);
+        }
+
+        long scaled; // value * 10^10, rounded half up
+        if (exponentBits == 0 && mantissa == 0) {
+            scaled = 0;
+        } else {
+            int shift; // value = mantissa / 2^shift, at least 24 below 2^29
+            if (exponentBits == 0) {
+                shift = 1074;
+            } else {
+                mantissa |= 1L << 52;
+                shift = 1075 - exponentBits;
+            }
+
+            if (shift > 120) {
+                // Below 2^-67, far from the first tie at 5e-11
+                scaled = 0;
+            } else {
+                // mantissa * 10^10 fits in 87 bits: (high, low)
+                long high = multiplyHigh(mantissa, TEN_DIGITS);
+                long low = mantissa * TEN_DIGITS;
+
+                long quotient;
+                boolean roundUp;
+                if (shift < 64) {
+                    quotient = (high << (64 - shift)) | (low >>> shift);
+                    long remainder = low & ((1L << shift) - 1);
+                    long half = 1L << (shift - 1);
+                    if (Math.abs(remainder - half) <= TEN_DIGITS) {
+                        return formatSlow(value, out, position);
+                    }
+                    roundUp = remainder > half;
+                } else {
+                    quotient = high >>> (shift - 64);
+                    // remainder = (high mod 2^(shift - 64), low), half = 2^(shift - 1)
+                    long remainderHigh = high & ((1L << (shift - 64)) - 1);
+                    long halfHigh = shift == 64 ? 0 : 1L << (shift - 65);
+                    long halfLow = shift == 64 ? 1L << 63 : 0;
+                    // difference = remainder - half, as a 128 bit two's complement number
+                    long differenceLow = low - halfLow;
+                    long borrow = Long.compareUnsigned(low, halfLow) < 0 ? 1 : 0;
+                    long differenceHigh = remainderHigh - halfHigh - borrow;
+                    roundUp = differenceHigh >= 0 && (differenceHigh | differenceLow) != 0;
+                    if (differenceHigh < 0) {
+                        // Negate
+                        differenceLow = -differenceLow;
+                        differenceHigh = ~differenceHigh + (differenceLow == 0 ? 1 : 0);
+                    }
+                    if (differenceHigh == 0 && Long.compareUnsigned(differenceLow, TEN_DIGITS) <= 0) {
+                        return formatSlow(value, out, position);
+                    }
+                }
+                scaled = quotient + (roundUp ? 1 : 0);
+            }
+        }
+
+        if (negative) {
+            out[position++] = '-';
+        }
+        position = writeLong(scaled / TEN_DIGITS, out, position);
+        out[position++] = '.';
+        long fraction = scaled % TEN_DIGITS;
+        for (int digit = 9; digit >= 0; --digit) {
+            out[position + digit] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        return position + 10;
+    }
+
+    // Upper 64 bits of the product of two non-negative longs, Math.multiplyHigh needs Java 9
+    static long multiplyHigh(long a, long b) {
+        long a0 = a & 0xffffffffL, a1 = a >>> 32;
+        long b0 = b & 0xffffffffL, b1 = b >>> 32;
+        long low = a0 * b0, cross0 = a0 * b1, cross1 = a1 * b0;
+        long middle = (low >>> 32) + (cross0 & 0xffffffffL) + (cross1 & 0xffffffffL);
+        return a1 * b1 + (cross0 >>> 32) + (cross1 >>> 32) + (middle >>> 32);
+    }
+
+    private static int formatSlow(double value, byte[] out, int position) {
+        byte[] bytes = String.format(Locale.ROOT, "%.10f", value).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, out, position, bytes.length);
+        return position + bytes.length;
+    }
+
+    private static int writeLong(long value, byte[] out, int position) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int digit = digits - 1; digit >= 0; --digit) {
+            out[position + digit] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + digits;
+    }
+
+    static int writeUtf8(String id, byte[] out, int position) {
+        for (int i = 0; i < id.length(); ++i) {
+            char c = id.charAt(i);
+            if (c >= 0x80) {
+                // Rare, let the JDK deal with multi-byte characters and surrogate pairs
+                byte[] bytes = id.substring(i).getBytes(StandardCharsets.UTF_8);
+                System.arraycopy(bytes, 0, out, position, bytes.length);
+                return position + bytes.length;
+            }
+            out[position++] = (byte) c;
+        }
+        return position;
+    }
+
+    static byte[] ensureCapacity(byte[] array, int capacity) {
+        return array.length >= capacity ? array : Arrays.copyOf(array, Math.max(capacity, 2 * array.length));
+    }
+
+    private void mergeSort(int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(from, middle);
+        mergeSort(middle, to);
+        if (compareLines(order[middle - 1], order[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, temp, from, to - from);
+        int i = from, j = middle;
+        for (int k = from; k < to; ++k) {
+            if (j == to || (i < middle && compareLines(temp[i], temp[j]) <= 0)) {
+                order[k] = temp[i++];
+            } else {
+                order[k] = temp[j++];
+            }
+        }
+    }
+
+    // String.CASE_INSENSITIVE_ORDER over the line id + numbers, without building it. Since Java 16
+    // it folds case by code point, so lines that first differ at a surrogate are left to it.
+    private int compareLines(int a, int b) {
+        String idA = snapshot.ids[a], idB = snapshot.ids[b];
+        int lengthA = idA.length() + numbersStart[a + 1] - numbersStart[a];
+        int lengthB = idB.length() + numbersStart[b + 1] - numbersStart[b];
+        int limit = Math.min(lengthA, lengthB);
+        for (int k = 0; k < limit; ++k) {
+            char c1 = k < idA.length() ? idA.charAt(k) : (char) numbers[numbersStart[a] + k - idA.length()];
+            char c2 = k < idB.length() ? idB.charAt(k) : (char) numbers[numbersStart[b] + k - idB.length()];
+            if (c1 != c2) {
+                if (Character.isSurrogate(c1) || Character.isSurrogate(c2)) {
+                    return String.CASE_INSENSITIVE_ORDER.compare(line(a), line(b));
+                }
+                c1 = Character.toUpperCase(c1);
+                c2 = Character.toUpperCase(c2);
+                if (c1 != c2) {
+                    c1 = Character.toLowerCase(c1);
+                    c2 = Character.toLowerCase(c2);
+                    if (c1 != c2) {
+                        return c1 - c2;
+                    }
+                }
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    private String line(int i) {
+        return snapshot.ids[i] + new String(numbers, numbersStart[i], numbersStart[i + 1] - numbersStart[i], StandardCharsets.US_ASCII);
+    }
+}
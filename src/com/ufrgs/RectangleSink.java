@@ -0,0 +1,24 @@
+package com.ufrgs;
+
+import java.io.IOException;
+
+// Destination of the rectangles of every revision, in revision order. Only write is required,
+// so a lambda can receive the snapshots of a run in memory.
+public interface RectangleSink {
+
+    void write(RectangleSnapshot snapshot) throws IOException;
+
+    // Called once after the last revision
+    default void close() throws IOException {
+    }
+
+    // Whether snapshots of different revisions may be written at the same time, in any order
+    default boolean isConcurrent() {
+        return false;
+    }
+
+    // Bytes written so far, for the metrics of a run, 0 if the sink does not write bytes
+    default long getBytesWritten() {
+        return 0;
+    }
+}
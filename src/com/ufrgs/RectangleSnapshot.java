@@ -0,0 +1,42 @@
+package com.ufrgs;
+
+import java.util.Arrays;
+
+// Rectangles of every visible item in one revision, copied out of the treemaps so they can be
+// written while the next revision is computed.
+public class RectangleSnapshot {
+
+    final int revision;
+    int size = 0;
+    String[] ids = new String[64];
+    double[] x = new double[64], y = new double[64], width = new double[64], height = new double[64];
+
+    public RectangleSnapshot(int revision) {
+        this.revision = revision;
+    }
+
+    public int getRevision() {
+        return revision;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(String id, double x, double y, double width, double height) {
+        if (size == ids.length) {
+            int capacity = 2 * size;
+            ids = Arrays.copyOf(ids, capacity);
+            this.x = Arrays.copyOf(this.x, capacity);
+            this.y = Arrays.copyOf(this.y, capacity);
+            this.width = Arrays.copyOf(this.width, capacity);
+            this.height = Arrays.copyOf(this.height, capacity);
+        }
+        ids[size] = id;
+        this.x[size] = x;
+        this.y[size] = y;
+        this.width[size] = width;
+        this.height[size] = height;
+        size++;
+    }
+}
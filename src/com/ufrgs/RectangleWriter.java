@@ -0,0 +1,117 @@
+package com.ufrgs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Hands snapshots to a sink. Without threads the sink is called by the caller; otherwise
+// snapshots go through a bounded queue to writer threads, and write blocks while the queue is
+// full so at most a few revisions are held in memory. Sinks that depend on revision order get
+// a single writer thread. The first failure of a writer thread is rethrown by the next write
+// or close; queued snapshots are dropped from then on, so the caller never waits on a dead writer.
+public class RectangleWriter implements AutoCloseable {
+
+    private static final RectangleSnapshot END = new RectangleSnapshot(-1);
+
+    private final RectangleSink sink;
+    private final Metrics metrics;
+    private BlockingQueue<RectangleSnapshot> queue;
+    private List<Thread> threads = new ArrayList<>();
+    private volatile Throwable failure; // First exception of a writer thread
+
+    public RectangleWriter(RectangleSink sink, int numberOfThreads, Metrics metrics) {
+        this.sink = sink;
+        this.metrics = metrics;
+        if (numberOfThreads > 0) {
+            if (!sink.isConcurrent()) {
+                numberOfThreads = 1;
+            }
+            this.queue = new ArrayBlockingQueue<>(2 * numberOfThreads);
+            for (int i = 0; i < numberOfThreads; ++i) {
+                Thread thread = new Thread(this::run, "rect-writer-" + i);
+                thread.start();
+                threads.add(thread);
+            }
+        }
+    }
+
+    public void write(RectangleSnapshot snapshot) throws IOException {
+        if (queue == null) {
+            writeSnapshot(snapshot);
+            return;
+        }
+        checkFailure();
+        try {
+            queue.put(snapshot);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing revision " + snapshot.getRevision());
+        }
+    }
+
+    // Waits until every queued snapshot has been written, then closes the sink
+    @Override
+    public void close() throws IOException {
+        try {
+            for (int i = 0; i < threads.size(); ++i) {
+                queue.put(END);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the writer threads");
+        }
+
+        try {
+            sink.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                throw e;
+            }
+            failure.addSuppressed(e);
+        }
+        metrics.count(Metrics.Counter.BYTES_WRITTEN, sink.getBytesWritten());
+        checkFailure();
+    }
+
+    private void run() {
+        try {
+            RectangleSnapshot snapshot;
+            while ((snapshot = queue.take()) != END) {
+                // Keep taking after a failure, the caller may be waiting for room in the queue
+                if (failure != null) {
+                    continue;
+                }
+                try {
+                    writeSnapshot(snapshot);
+                } catch (Throwable e) {
+                    synchronized (this) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // A new exception every time, the caller may see it from both write and close
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Writing snapshots failed", failure);
+        }
+    }
+
+    private void writeSnapshot(RectangleSnapshot snapshot) throws IOException {
+        Metrics.Timer timer = metrics.start(Metrics.Phase.WRITE, snapshot.getRevision());
+        sink.write(snapshot);
+        metrics.stop(timer);
+    }
+}
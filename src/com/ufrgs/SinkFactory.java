@@ -0,0 +1,64 @@
+package com.ufrgs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Output settings of a run: which sink writes the snapshots and how its directory is prepared.
+// Only read by create, so one factory can serve every job of a batch. The defaults match the
+// command line defaults.
+public class SinkFactory {
+
+    String format = "rect";
+    int keyframeInterval = 25;
+    double deltaEpsilon = 0;
+    boolean keepExistingFiles = false;
+
+    // rect, binary, delta or container
+    public SinkFactory setFormat(String format) {
+        if (!format.matches("rect|binary|delta|container")) {
+            throw new IllegalArgumentException("Unknown output format - " + format);
+        }
+        this.format = format;
+        return this;
+    }
+
+    public SinkFactory setKeyframeInterval(int keyframeInterval) {
+        this.keyframeInterval = keyframeInterval;
+        return this;
+    }
+
+    public SinkFactory setDeltaEpsilon(double deltaEpsilon) {
+        this.deltaEpsilon = deltaEpsilon;
+        return this;
+    }
+
+    // Only replace the files of the revisions written, for runs that start at a later revision
+    public SinkFactory setKeepExistingFiles(boolean keepExistingFiles) {
+        this.keepExistingFiles = keepExistingFiles;
+        return this;
+    }
+
+    // Cleans/creates the output directory and opens a sink writing to it
+    public RectangleSink create(String outputDir) throws IOException {
+        prepareOutputDir(outputDir);
+        if (format.equals("container")) {
+            return new ContainerFileSink(outputDir);
+        } else if (format.equals("binary")) {
+            return new BinaryFileSink(outputDir);
+        } else if (format.equals("delta")) {
+            return new DeltaFileSink(outputDir, keyframeInterval, deltaEpsilon);
+        }
+        return new RectFileSink(outputDir);
+    }
+
+    // A container is a single file truncated when it is opened, so there is no need to list and
+    // delete the whole directory
+    private void prepareOutputDir(String outputDir) {
+        File[] files = format.equals("container") || keepExistingFiles ? null : new File(outputDir).listFiles();
+        if (files != null && files.length > 0) {
+            Arrays.stream(files).forEach(File::delete);
+        }
+        new File(outputDir).mkdirs(); // In case path doesn't exist
+    }
+}
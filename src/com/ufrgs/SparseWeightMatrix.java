@@ -0,0 +1,178 @@
+package com.ufrgs;
+
+import java.util.Arrays;
+
+// Run-length encoded revision weights. A row is a sorted list of change points:
+// values[i] holds from revision starts[i] up to (excluding) starts[i + 1].
+// Adjacent runs always differ, so most files only need a handful of runs.
+public class SparseWeightMatrix implements WeightStore {
+
+    private final int numberOfRevisions;
+    private int[][] starts = new int[16][];
+    private double[][] values = new double[16][];
+    private int[] counts = new int[16];
+    private int numberOfRows = 0;
+
+    public SparseWeightMatrix(int numberOfRevisions) {
+        this.numberOfRevisions = numberOfRevisions;
+    }
+
+    @Override
+    public int getNumberOfRevisions() {
+        return numberOfRevisions;
+    }
+
+    @Override
+    public int getNumberOfRows() {
+        return numberOfRows;
+    }
+
+    @Override
+    public int addRow() {
+        int row = numberOfRows++;
+        if (row == counts.length) {
+            starts = Arrays.copyOf(starts, 2 * row);
+            values = Arrays.copyOf(values, 2 * row);
+            counts = Arrays.copyOf(counts, 2 * row);
+        }
+        // A single run of zeros
+        starts[row] = new int[2];
+        values[row] = new double[2];
+        counts[row] = 1;
+        return row;
+    }
+
+    @Override
+    public double get(int row, int revision) {
+        return values[row][findRun(row, revision)];
+    }
+
+    @Override
+    public void set(int row, int revision, double weight) {
+
+        int run = findRun(row, revision);
+        double previous = values[row][run];
+        if (previous == weight) {
+            return;
+        }
+
+        // The following revision keeps the previous weight
+        if (revision + 1 < numberOfRevisions &&
+                (run + 1 == counts[row] || starts[row][run + 1] != revision + 1)) {
+            insertRun(row, run + 1, revision + 1, previous);
+        }
+
+        if (starts[row][run] == revision) {
+            values[row][run] = weight;
+        } else {
+            insertRun(row, run + 1, revision, weight);
+            run++;
+        }
+
+        // Merge with neighbours holding the same weight
+        if (run + 1 < counts[row] && values[row][run + 1] == weight) {
+            removeRun(row, run + 1);
+        }
+        if (run > 0 && values[row][run - 1] == weight) {
+            removeRun(row, run);
+        }
+    }
+
+    @Override
+    public void addRow(int source, int target) {
+
+        int sourceCount = counts[source], targetCount = counts[target];
+        int[] newStarts = new int[sourceCount + targetCount];
+        double[] newValues = new double[sourceCount + targetCount];
+        int count = 0;
+
+        // Walk both change point lists at once
+        int i = 0, j = 0;
+        while (i < sourceCount || j < targetCount) {
+            int revision;
+            if (j == targetCount || (i < sourceCount && starts[source][i] < starts[target][j])) {
+                revision = starts[source][i++];
+            } else if (i == sourceCount || starts[target][j] < starts[source][i]) {
+                revision = starts[target][j++];
+            } else {
+                revision = starts[source][i++];
+                j++;
+            }
+            // Both rows start at revision 0, so i and j are at least 1 here
+            double weight = values[target][j - 1] + values[source][i - 1];
+            if (count > 0 && newValues[count - 1] == weight) {
+                continue;
+            }
+            newStarts[count] = revision;
+            newValues[count] = weight;
+            count++;
+        }
+
+        starts[target] = newStarts;
+        values[target] = newValues;
+        counts[target] = count;
+    }
+
+    @Override
+    public int getAdditionRevision(int row) {
+        // Weights are never negative, so this stops at the first or second run
+        for (int run = 0; run < counts[row]; ++run) {
+            if (values[row][run] > 0.0) {
+                return starts[row][run];
+            }
+        }
+        return numberOfRevisions;
+    }
+
+    @Override
+    public int getRemovalRevision(int row) {
+        for (int run = counts[row] - 1; run >= 0; --run) {
+            if (values[row][run] > 0.0) {
+                return run + 1 < counts[row] ? starts[row][run + 1] : numberOfRevisions;
+            }
+        }
+        return numberOfRevisions;
+    }
+
+    public int getNumberOfRuns(int row) {
+        return counts[row];
+    }
+
+    @Override
+    public String rowToString(int row) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int revision = 0; revision < numberOfRevisions; ++revision) {
+            if (revision > 0) {
+                builder.append(", ");
+            }
+            builder.append(get(row, revision));
+        }
+        return builder.append(']').toString();
+    }
+
+    // Index of the run that contains the revision
+    private int findRun(int row, int revision) {
+        int index = Arrays.binarySearch(starts[row], 0, counts[row], revision);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private void insertRun(int row, int index, int start, double value) {
+        int count = counts[row];
+        if (count == starts[row].length) {
+            starts[row] = Arrays.copyOf(starts[row], 2 * count);
+            values[row] = Arrays.copyOf(values[row], 2 * count);
+        }
+        System.arraycopy(starts[row], index, starts[row], index + 1, count - index);
+        System.arraycopy(values[row], index, values[row], index + 1, count - index);
+        starts[row][index] = start;
+        values[row][index] = value;
+        counts[row]++;
+    }
+
+    private void removeRun(int row, int index) {
+        int count = counts[row];
+        System.arraycopy(starts[row], index + 1, starts[row], index, count - index - 1);
+        System.arraycopy(values[row], index + 1, values[row], index, count - index - 1);
+        counts[row]--;
+    }
+}
@@ -0,0 +1,275 @@
+package com.ufrgs;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Reads revisions one at a time while the treemaps are computed, instead of parsing the whole
+// history up front like Parser. Revisions come from either
+//  - a directory: files are taken in the order Parser sorts them (shorter names first, then by
+//    name) as they appear. Files should be moved in complete, hidden files are skipped, and a
+//    file named END stops the stream once every revision before it has been read.
+//  - stdin, when the input is "-": revisions in the usual id,weight format, each one ended by an
+//    empty line or by the end of the input.
+// The hierarchy grows as ids show up. Children are kept in the order Parser gives them, so the
+// layouts match a batch run over the same revisions.
+public class StreamingParser {
+
+    public static final String STDIN = "-";
+    private static final String END_FILE = "END";
+
+    private final String input;
+    private final StreamingWeightStore weights = new StreamingWeightStore();
+    private final IdDictionary dictionary = new IdDictionary();
+    private final List<Entity> entityIndex = new ArrayList<>(); // dictionary index -> entity
+    private final Map<String, Entity> pathIndex = new HashMap<>(); // Inner nodes by path, as in Parser
+    private final Map<Entity, String> sortKeys = new HashMap<>();
+    private final Map<Entity, Entity> parents = new HashMap<>();
+    private final Entity root;
+    private final Metrics metrics;
+    private int revision = -1;
+    // Entities first weighted in the current revision whose parent was already weighted before
+    private final List<Entity> addedEntities = new ArrayList<>();
+
+    // Directory input
+    private WatchService watcher;
+    private String lastFile;
+
+    // Stdin input
+    private InputStream in;
+    private byte[] buffer = new byte[1 << 16];
+
+    public StreamingParser(String input) throws IOException {
+        this(input, new LayoutOptions());
+    }
+
+    // Only the metrics are taken from the options
+    public StreamingParser(String input, LayoutOptions options) throws IOException {
+        this.input = input;
+        this.metrics = options.metrics;
+        this.root = new Entity("", weights);
+        sortKeys.put(root, "");
+
+        if (input.equals(STDIN)) {
+            in = new BufferedInputStream(System.in, 1 << 16);
+        } else {
+            if (!new File(input).isDirectory()) {
+                throw new IOException("Invalid input dir path - " + input);
+            }
+            watcher = FileSystems.getDefault().newWatchService();
+            Paths.get(input).register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+        }
+    }
+
+    public Entity getRoot() {
+        return root;
+    }
+
+    public Entity getParent(Entity entity) {
+        return parents.get(entity);
+    }
+
+    public List<Entity> getAddedEntities() {
+        return addedEntities;
+    }
+
+    // Waits for the next revision and loads its weights. False when the stream has ended or the
+    // thread was interrupted.
+    public boolean nextRevision() throws IOException {
+
+        // Includes the time spent waiting for the revision to arrive
+        Metrics.Timer timer = metrics.start(Metrics.Phase.PARSE, revision + 1);
+        CsvTokenizer.Rows rows;
+        try {
+            rows = in != null ? readStdinRevision() : readNextFile();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (rows == null) {
+            return false;
+        }
+
+        weights.startRevision(++revision);
+        metrics.count(Metrics.Counter.ROWS_PARSED, rows.size);
+        for (int i = 0; i < rows.size; ++i) {
+            int id = rows.ids[i];
+            while (entityIndex.size() <= id) {
+                entityIndex.add(null);
+            }
+            Entity entity = entityIndex.get(id);
+            if (entity == null) {
+                entity = addEntity(dictionary.getId(id));
+                entityIndex.set(id, entity);
+            }
+            entity.setWeight(rows.weights[i], revision);
+        }
+
+        addedEntities.clear();
+        sumTree(root);
+        metrics.stop(timer);
+        return true;
+    }
+
+    // Inner nodes weigh the sum of their children, added in the same order as Parser.sumTree does
+    private void sumTree(Entity entity) {
+
+        double weight = entity.getWeight(revision);
+        for (Entity child : entity.getChildren()) {
+            if (!child.isLeaf()) {
+                sumTree(child);
+            }
+            weight += child.getWeight(revision);
+        }
+        if (!entity.isLeaf()) {
+            entity.setWeight(weight, revision);
+        }
+
+        if (entity.getAdditionRevision() < revision) {
+            for (Entity child : entity.getChildren()) {
+                if (child.getAdditionRevision() == revision) {
+                    addedEntities.add(child);
+                }
+            }
+        }
+    }
+
+    // Places the entity in the hierarchy, creating its missing parents like Parser.buildHierarchy
+    private Entity addEntity(String id) {
+
+        Entity entity = new Entity(id, weights);
+        Entity current = root;
+        int dividerIndex = id.lastIndexOf("/");
+
+        if (dividerIndex != -1) {
+            String prefix = id.substring(0, dividerIndex);
+            String[] parentIds = prefix.split("/");
+
+            StringBuilder path = new StringBuilder();
+            for (String parentId : parentIds) {
+                if (path.length() > 0) {
+                    path.append('/');
+                }
+                path.append(parentId);
+                String parentPath = path.toString();
+
+                Entity parent = pathIndex.get(parentPath);
+                if (parent == null) {
+                    parent = new Entity(parentId, weights);
+                    // Sorts with its first descendant: after a file of the same name, before anything under it
+                    addChild(current, parent, parentPath + "/");
+                    pathIndex.put(parentPath, parent);
+                }
+                current = parent;
+            }
+            addChild(current, entity, id);
+        } else {
+            addChild(root, entity, id);
+            pathIndex.putIfAbsent(id, entity);
+        }
+        return entity;
+    }
+
+    // Parser creates children in sorted id order, so siblings are kept sorted by the id of their
+    // first descendant
+    private void addChild(Entity parent, Entity child, String sortKey) {
+        List<Entity> children = parent.getChildren();
+        int low = 0, high = children.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortKeys.get(children.get(middle)).compareTo(sortKey) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        parent.addChild(low, child);
+        sortKeys.put(child, sortKey);
+        parents.put(child, parent);
+    }
+
+    private CsvTokenizer.Rows readNextFile() throws IOException, InterruptedException {
+        while (true) {
+            File next = null;
+            boolean ended = false;
+            File[] files = new File(input).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.isFile() || file.getName().startsWith(".")) {
+                        continue;
+                    }
+                    if (file.getName().equals(END_FILE)) {
+                        ended = true;
+                        continue;
+                    }
+                    String path = file.getCanonicalPath();
+                    if ((lastFile == null || comparePaths(path, lastFile) > 0)
+                            && (next == null || comparePaths(path, next.getCanonicalPath()) < 0)) {
+                        next = file;
+                    }
+                }
+            }
+
+            if (next != null) {
+                lastFile = next.getCanonicalPath();
+                return CsvTokenizer.tokenize(lastFile, dictionary);
+            } else if (ended) {
+                watcher.close();
+                return null;
+            }
+
+            // Listed again after every wake up, events only say that something changed
+            WatchKey key = watcher.poll(1, TimeUnit.SECONDS);
+            if (key != null) {
+                key.pollEvents();
+                key.reset();
+            }
+        }
+    }
+
+    // Order of Parser.parseCSVs: shorter paths first, then by name
+    private static int comparePaths(String a, String b) {
+        return a.length() != b.length() ? Integer.compare(a.length(), b.length()) : a.compareTo(b);
+    }
+
+    private CsvTokenizer.Rows readStdinRevision() throws IOException {
+        int length = 0, lineStart = 0;
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                break;
+            }
+            if (b == '\n') {
+                boolean empty = length == lineStart || (length == lineStart + 1 && buffer[lineStart] == '\r');
+                if (empty) {
+                    length = lineStart;
+                    if (length > 0) {
+                        break;
+                    }
+                    continue; // Blank lines between revisions
+                }
+            }
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, 2 * length);
+            }
+            buffer[length++] = (byte) b;
+            if (b == '\n') {
+                lineStart = length;
+            }
+        }
+        return length == 0 ? null : CsvTokenizer.tokenize(ByteBuffer.wrap(buffer, 0, length), "stdin", dictionary);
+    }
+}
@@ -0,0 +1,97 @@
+package com.ufrgs;
+
+import java.util.Arrays;
+
+// Weights of the latest revision only, for streamed input where the number of revisions is not
+// known up front. Rows grow on demand and a revision's weights are dropped when the next one
+// starts, so memory depends on the number of entities and not on the length of the history.
+// Earlier revisions read as zero, which is all the initial layout asks of revision 0 when the
+// history starts empty.
+public class StreamingWeightStore implements WeightStore {
+
+    // Addition or removal revision of a row that has not reached it yet
+    public static final int NO_REVISION = Integer.MAX_VALUE;
+
+    private int revision = 0;
+    private int numberOfRows = 0;
+    private double[] weights = new double[1024];
+    private int[] additionRevisions = new int[1024];
+    private int[] lastPositiveRevisions = new int[1024];
+
+    // Moves on to the revision, with every weight at zero until it is set
+    public void startRevision(int revision) {
+        this.revision = revision;
+        Arrays.fill(weights, 0, numberOfRows, 0);
+    }
+
+    @Override
+    public int getNumberOfRevisions() {
+        return revision + 1;
+    }
+
+    @Override
+    public int getNumberOfRows() {
+        return numberOfRows;
+    }
+
+    @Override
+    public int addRow() {
+        int row = numberOfRows++;
+        if (row == weights.length) {
+            weights = Arrays.copyOf(weights, 2 * row);
+            additionRevisions = Arrays.copyOf(additionRevisions, 2 * row);
+            lastPositiveRevisions = Arrays.copyOf(lastPositiveRevisions, 2 * row);
+        }
+        weights[row] = 0;
+        additionRevisions[row] = NO_REVISION;
+        lastPositiveRevisions[row] = NO_REVISION;
+        return row;
+    }
+
+    @Override
+    public double get(int row, int revision) {
+        return revision == this.revision ? weights[row] : 0;
+    }
+
+    @Override
+    public void set(int row, int revision, double weight) {
+        if (revision != this.revision) {
+            throw new IllegalArgumentException("Only revision " + this.revision + " can be set, not " + revision);
+        }
+        weights[row] = weight;
+        updateRevisions(row);
+    }
+
+    @Override
+    public void addRow(int source, int target) {
+        weights[target] += weights[source];
+        updateRevisions(target);
+    }
+
+    @Override
+    public int getAdditionRevision(int row) {
+        return additionRevisions[row];
+    }
+
+    @Override
+    public int getRemovalRevision(int row) {
+        if (lastPositiveRevisions[row] == NO_REVISION || weights[row] > 0.0) {
+            return NO_REVISION;
+        }
+        return lastPositiveRevisions[row] + 1;
+    }
+
+    @Override
+    public String rowToString(int row) {
+        return "[" + revision + ": " + weights[row] + "]";
+    }
+
+    private void updateRevisions(int row) {
+        if (weights[row] > 0.0) {
+            if (additionRevisions[row] == NO_REVISION) {
+                additionRevisions[row] = revision;
+            }
+            lastPositiveRevisions[row] = revision;
+        }
+    }
+}
@@ -1,69 +1,325 @@
 package com.ufrgs;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinTask;
+
+import static com.ufrgs.BlockArena.NONE;
 
 public class Treemap {
 
+    // Child treemaps with fewer entities than this are laid out on the calling thread
+    private static final int PARALLEL_THRESHOLD = 1000;
+
     String id;
-    Block origin;
+    final LayoutOptions options;
+    private final Metrics metrics;
+    BlockArena blocks = new BlockArena();
+    int origin = NONE;
     List<Treemap> treemapList;
+    private Map<String, Treemap> treemapIndex = new HashMap<>(); // Nested treemaps by id, first one wins
     Rectangle baseRectangle;
     private List<Entity> entityList;
-
-    public Treemap(String id, List<Entity> entityList, Rectangle rectangle) {
+    // Entities added after revision 0, grouped by addition revision: additions.get(i) holds those
+    // of additionRevisions[i], which is sorted, so a lookup neither boxes nor allocates
+    private int[] additionRevisions = new int[0];
+    private List<List<Entity>> additions = new ArrayList<>();
+    private Map<String, Integer> blockIndex = new HashMap<>();
+    private int weightsRevision = -1; // Revision of the cached block weights, -1 if stale
+    private boolean aspectRatiosValid = false; // blocks.worstBlock reflects the current tree and coordinates
+    private int size = 0; // Entities in this treemap and all nested ones
+
+    public Treemap(String id, List<Entity> entityList, Rectangle rectangle, LayoutOptions options) {
         this.id = id;
+        this.options = options;
+        this.metrics = options.metrics;
         this.baseRectangle = rectangle.copy();
         this.entityList = new ArrayList<>();
         for (Entity entity : entityList) {
             this.entityList.add(entity);
+            this.size += entity.getSubtreeSize();
+            // Entities that exist from the first revision are never added afterwards
+            if (entity.getAdditionRevision() != 0) {
+                getAdditionGroup(entity.getAdditionRevision()).add(entity);
+            }
         }
         this.treemapList = new ArrayList<>();
     }
 
+    // Entities in this treemap and all nested ones
+    public int size() {
+        return size;
+    }
+
+    // Entities first weighted in this revision, in entity list order
+    private List<Entity> getAddedEntities(int revision) {
+        int index = Arrays.binarySearch(additionRevisions, 0, additions.size(), revision);
+        return index >= 0 ? additions.get(index) : Collections.emptyList();
+    }
+
+    // Entities added in the revision, a new empty group if there are none yet
+    private List<Entity> getAdditionGroup(int revision) {
+        int count = additions.size();
+        int index = Arrays.binarySearch(additionRevisions, 0, count, revision);
+        if (index >= 0) {
+            return additions.get(index);
+        }
+        index = -index - 1;
+        if (count == additionRevisions.length) {
+            additionRevisions = Arrays.copyOf(additionRevisions, Math.max(4, 2 * count));
+        }
+        System.arraycopy(additionRevisions, index, additionRevisions, index + 1, count - index);
+        additionRevisions[index] = revision;
+        List<Entity> group = new ArrayList<>();
+        additions.add(index, group);
+        return group;
+    }
+
     public void computeTreemap(int revision) {
 
-        if (this.origin != null) {
-            this.origin.rectangle = baseRectangle.copy();
-            computeCoordinates(this.origin, revision);
+        if (this.origin != NONE) {
+            layout(revision);
         }
 
-        for (Entity entity : entityList) {
-            // Find out which entities must be added
-            if (entity.getAdditionRevision() == revision && revision != 0 ) {
-                // Add them, recomputing treemap after each insertion
-                if (findBlock(this.origin, entity.getId()) == null) {
-                    addItem(entity);
+        if (options.batchedInsertion) {
+            addItemsBatched(revision);
+        } else {
+            addItems(revision);
+        }
+
+        // Trigger treemap computation for children treemaps
+        if (options.layoutThreads > 1 && ForkJoinTask.inForkJoinPool()) {
+            computeChildrenInParallel(revision);
+        } else {
+            for (Treemap treemap : treemapList) {
+                blocks.copyRectangle(this.findBlock(treemap.id), treemap.baseRectangle);
+                treemap.computeTreemap(revision);
+            }
+        }
+    }
+
+    // Children treemaps only touch their own blocks, so large ones are forked while small ones
+    // run inline. Every child gets the same rectangle as in the sequential loop, so results match.
+    private void computeChildrenInParallel(int revision) {
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (Treemap treemap : treemapList) {
+            blocks.copyRectangle(this.findBlock(treemap.id), treemap.baseRectangle);
+            if (treemap.size >= PARALLEL_THRESHOLD) {
+                tasks.add(ForkJoinTask.adapt(() -> treemap.computeTreemap(revision)).fork());
+            } else {
+                treemap.computeTreemap(revision);
+            }
+        }
+
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+
+    private void addItems(int revision) {
+
+        // Entities added in this revision, recomputing treemap after each insertion
+        for (Entity entity : getAddedEntities(revision)) {
+            if (findBlock(entity.getId()) == NONE) {
+                addItem(entity);
+            }
+
+            // Trigger children treemap computation (reset origin coords)
+            layout(revision);
+
+            // Make recursive calls to create treemaps
+            if (entity.getChildren().size() > 0) {
+                if (hasTreemap(entity.getId())) {
+                    break;
                 }
 
-                // Trigger children treemap computation (reset origin coords)
-                this.origin.rectangle = baseRectangle.copy();
-                computeCoordinates(this.origin, revision);
-
-                // Make recursive calls to create treemaps
-                if (entity.getChildren().size() > 0) {
-                    boolean exists = false;
-                    for (Treemap tm : this.treemapList) {
-                        if (tm.id.equals(entity.getId())) {
-                            exists = true;
-                        }
+                Rectangle allowedArea = blocks.getRectangle(this.findBlock(entity.getId()));
+                Treemap newTreemap = new Treemap(entity.getId(), entity.getChildren(), allowedArea, options);
+                this.addTreemap(newTreemap);
+                newTreemap.computeTreemap(revision);
+            }
+        }
+    }
+
+    // Inserts every entity added in this revision with a single coordinate computation.
+    // Receivers are picked from the aspect ratios of the layout at the start of the revision,
+    // and each insertion only splits the receiver's rectangle in proportion to the weights
+    // instead of recomputing the whole treemap. The resulting layouts are therefore close to,
+    // but not the same as, the ones built one insertion at a time, usually with slightly
+    // worse aspect ratios.
+    private void addItemsBatched(int revision) {
+
+        List<Entity> addedList = new ArrayList<>();
+        for (Entity entity : getAddedEntities(revision)) {
+            if (findBlock(entity.getId()) == NONE) {
+                addedList.add(entity);
+            }
+        }
+
+        if (!addedList.isEmpty()) {
+            // Largest first, as in the squarified layout
+            addedList.sort(Comparator.comparing((Entity entity) -> entity.getWeight(revision)).reversed());
+
+            // Pre-order position breaks ties the way the tournament does
+            PriorityQueue<Candidate> candidates = new PriorityQueue<>();
+            int order = 0;
+            if (origin != NONE) {
+                int count = blocks.preOrder(origin);
+                int[] preOrder = blocks.getPreOrder();
+                for (int i = 0; i < count; ++i) {
+                    int block = preOrder[i];
+                    candidates.add(new Candidate(block, blocks.getCentralWeight(block, revision), blocks.getAspectRatio(block), order++));
+                }
+            }
+
+            Metrics.Timer timer = metrics.start(Metrics.Phase.INSERTION, revision);
+            metrics.count(Metrics.Counter.INSERTIONS, addedList.size());
+            for (Entity entity : addedList) {
+                int block = blocks.addBlock(entity);
+                indexBlock(block);
+                double weight = entity.getWeight(revision);
+
+                if (origin == NONE) {
+                    origin = block;
+                    blocks.setRectangle(block, baseRectangle);
+                } else {
+                    Candidate receiver = candidates.poll();
+                    int receiverBlock = receiver.block;
+                    boolean rightInsert = blocks.width[receiverBlock] > blocks.height[receiverBlock] + 0.0001;
+                    insertBlock(receiverBlock, block);
+
+                    // Estimate how the receiver's area is shared until the real layout is computed
+                    double share = receiver.weight / (receiver.weight + weight);
+                    if (Double.isNaN(share)) {
+                        share = 0.5;
                     }
-                    if (exists) {
-                        break;
+                    blocks.x[block] = blocks.x[receiverBlock];
+                    blocks.y[block] = blocks.y[receiverBlock];
+                    blocks.width[block] = blocks.width[receiverBlock];
+                    blocks.height[block] = blocks.height[receiverBlock];
+                    if (rightInsert) {
+                        blocks.x[block] += blocks.width[receiverBlock] * share;
+                        blocks.width[block] = blocks.width[receiverBlock] * (1 - share);
+                        blocks.width[receiverBlock] *= share;
+                    } else {
+                        blocks.y[block] += blocks.height[receiverBlock] * share;
+                        blocks.height[block] = blocks.height[receiverBlock] * (1 - share);
+                        blocks.height[receiverBlock] *= share;
                     }
-
-                    Rectangle allowedArea = this.findBlock(this.origin, entity.getId()).rectangle.copy();
-                    Treemap newTreemap = new Treemap(entity.getId(), entity.getChildren(), allowedArea);
-                    this.addTreemap(newTreemap);
-                    newTreemap.computeTreemap(revision);
+                    candidates.add(new Candidate(receiverBlock, receiver.weight, blocks.getAspectRatio(receiverBlock), receiver.order));
                 }
+                candidates.add(new Candidate(block, weight, blocks.getAspectRatio(block), order++));
             }
+
+            weightsRevision = -1;
+            aspectRatiosValid = false;
+            metrics.stop(timer);
+            layout(revision);
         }
 
-        // Trigger treemap computation for children treemaps
-        for (Treemap treemap : treemapList) {
-            treemap.baseRectangle = this.findBlock(this.origin, treemap.id).rectangle.copy();
-            treemap.computeTreemap(revision);
+        // Make recursive calls to create treemaps
+        for (Entity entity : getAddedEntities(revision)) {
+            if (entity.getChildren().size() > 0 && !hasTreemap(entity.getId())) {
+                Rectangle allowedArea = blocks.getRectangle(this.findBlock(entity.getId()));
+                Treemap newTreemap = new Treemap(entity.getId(), entity.getChildren(), allowedArea, options);
+                this.addTreemap(newTreemap);
+                newTreemap.computeTreemap(revision);
+            }
+        }
+    }
+
+    // A block that may receive a new item in a batch, ordered by aspect ratio and then by
+    // position in the tree
+    private static class Candidate implements Comparable<Candidate> {
+        int block;
+        double weight; // Weight held by the block's own rectangle
+        double aspectRatio;
+        int order;
+
+        Candidate(int block, double weight, double aspectRatio, int order) {
+            this.block = block;
+            this.weight = weight;
+            this.aspectRatio = aspectRatio;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int result = Double.compare(this.aspectRatio, other.aspectRatio);
+            return result != 0 ? result : Integer.compare(this.order, other.order);
+        }
+    }
+
+    private boolean hasTreemap(String treemapId) {
+        return getTreemap(treemapId) != null;
+    }
+
+    // Nested treemap of a child entity, or null
+    public Treemap getTreemap(String treemapId) {
+        return treemapIndex.get(treemapId);
+    }
+
+    // An entity that joined the hierarchy after this treemap was created, streamed input only.
+    // It is laid out with the other additions of the revision it was first weighted in.
+    public void addEntity(Entity entity, int revision) {
+        this.size += entity.getSubtreeSize();
+        getAdditionGroup(revision).add(entity);
+    }
+
+    // Entities that joined the hierarchy below one of the nested treemaps
+    void addNestedEntities(int count) {
+        this.size += count;
+    }
+
+    private void layout(int revision) {
+        Metrics.Timer timer = metrics.start(Metrics.Phase.COORDINATES, revision);
+        int count = blocks.preOrder(origin);
+        int[] preOrder = blocks.getPreOrder();
+        metrics.count(Metrics.Counter.BLOCKS_VISITED, count);
+
+        if (weightsRevision != revision) {
+            updateFullWeights(preOrder, count, revision);
+            weightsRevision = revision;
+        }
+
+        blocks.setRectangle(origin, baseRectangle);
+        // Parents come before their children in pre-order, so every block already has its area
+        for (int i = 0; i < count; ++i) {
+            computeCoordinates(preOrder[i], revision);
+        }
+        metrics.stop(timer);
+
+        timer = metrics.start(Metrics.Phase.ASPECT_RATIOS, revision);
+        updateWorstAspectRatios(preOrder, count);
+        metrics.stop(timer);
+    }
+
+    // Caches the subtree weight of every block. Children come after their parent in pre-order,
+    // so walking it backwards settles them first.
+    private void updateFullWeights(int[] preOrder, int count, int revision) {
+        for (int i = count - 1; i >= 0; --i) {
+            int block = preOrder[i];
+            double fullWeight = blocks.getWeight(block, revision);
+            if (blocks.central[block] != NONE) {
+                fullWeight += blocks.fullWeight[blocks.central[block]];
+            }
+            if (blocks.right[block] != NONE) {
+                fullWeight += blocks.fullWeight[blocks.right[block]];
+            }
+            if (blocks.bottom[block] != NONE) {
+                fullWeight += blocks.fullWeight[blocks.bottom[block]];
+            }
+            blocks.fullWeight[block] = fullWeight;
         }
     }
 
@@ -72,202 +328,249 @@ public class Treemap {
     //  |---| R |
     //  | B |   |
     //  ---------
-    private void computeCoordinates(Block block, int revision) {
+    // Splits the block's area between C, R and B. The block keeps C as its own rectangle.
+    private void computeCoordinates(int block, int revision) {
+
+        double[] x = blocks.x, y = blocks.y, width = blocks.width, height = blocks.height;
+        int right = blocks.right[block], bottom = blocks.bottom[block], central = blocks.central[block];
 
-        if (block.right != null && block.bottom != null) {
+        if (right != NONE && bottom != NONE) {
 
-            double baseWidth = block.rectangle.width;
-            double baseHeight = block.rectangle.height;
+            double baseWidth = width[block];
+            double baseHeight = height[block];
+            double centralWeight = blocks.getCentralWeight(block, revision);
             // C coordinates
-            block.rectangle.width = ((block.getCentralWeight(revision) + block.bottom.getFullWeight(revision)) / (block.getCentralWeight(revision) + block.bottom.getFullWeight(revision) + block.right.getFullWeight(revision))) * baseWidth;
-            block.rectangle.height = (block.getCentralWeight(revision) / (block.getCentralWeight(revision) + block.bottom.getFullWeight(revision))) * baseHeight;
+            width[block] = ((centralWeight + blocks.fullWeight[bottom]) / (centralWeight + blocks.fullWeight[bottom] + blocks.fullWeight[right])) * baseWidth;
+            height[block] = (centralWeight / (centralWeight + blocks.fullWeight[bottom])) * baseHeight;
 
-            if (Double.isNaN(block.rectangle.height) || Double.isInfinite(block.rectangle.height)) {
-                block.rectangle.height = 0;
+            if (Double.isNaN(height[block]) || Double.isInfinite(height[block])) {
+                height[block] = 0;
             }
 
-            if (Double.isNaN(block.rectangle.width) || Double.isInfinite(block.rectangle.width)) {
-                block.rectangle.width = 0;
+            if (Double.isNaN(width[block]) || Double.isInfinite(width[block])) {
+                width[block] = 0;
             }
 
             // B coordinates
-            block.bottom.rectangle.x = block.rectangle.x;
-            block.bottom.rectangle.width = block.rectangle.width;
-            block.bottom.rectangle.y = block.rectangle.y + block.rectangle.height;
-            block.bottom.rectangle.height = baseHeight - block.rectangle.height;
+            x[bottom] = x[block];
+            width[bottom] = width[block];
+            y[bottom] = y[block] + height[block];
+            height[bottom] = baseHeight - height[block];
 
             // R coordinates
-            block.right.rectangle.x = block.rectangle.x + block.rectangle.width;
-            block.right.rectangle.width = baseWidth - block.rectangle.width;
-            block.right.rectangle.y = block.rectangle.y;
-            block.right.rectangle.height = baseHeight;
+            x[right] = x[block] + width[block];
+            width[right] = baseWidth - width[block];
+            y[right] = y[block];
+            height[right] = baseHeight;
 
-            computeCoordinates(block.right, revision);
-            computeCoordinates(block.bottom, revision);
+        } else if (right != NONE) {
 
-        } else if (block.right != null) {
-
-            double baseWidth = block.rectangle.width;
+            double baseWidth = width[block];
+            double centralWeight = blocks.getCentralWeight(block, revision);
 
             // C coordinates - Only the width changes
-            block.rectangle.width = (block.getCentralWeight(revision) / (block.getCentralWeight(revision) + block.right.getFullWeight(revision))) * baseWidth;
-            if (Double.isNaN(block.rectangle.width) || Double.isInfinite(block.rectangle.width)) {
-                block.rectangle.width = 0;
+            width[block] = (centralWeight / (centralWeight + blocks.fullWeight[right])) * baseWidth;
+            if (Double.isNaN(width[block]) || Double.isInfinite(width[block])) {
+                width[block] = 0;
             }
             // R coordinates
-            block.right.rectangle.x = block.rectangle.x + block.rectangle.width;
-            block.right.rectangle.width = baseWidth - block.rectangle.width;
-            block.right.rectangle.y = block.rectangle.y;
-            block.right.rectangle.height = block.rectangle.height;
-
-            computeCoordinates(block.right, revision);
+            x[right] = x[block] + width[block];
+            width[right] = baseWidth - width[block];
+            y[right] = y[block];
+            height[right] = height[block];
 
-        } else if (block.bottom != null) {
+        } else if (bottom != NONE) {
 
-            double baseHeight = block.rectangle.height;
+            double baseHeight = height[block];
+            double centralWeight = blocks.getCentralWeight(block, revision);
 
             // C coordinates - Only the height changes
-            block.rectangle.height = (block.getCentralWeight(revision) / (block.getCentralWeight(revision) + block.bottom.getFullWeight(revision))) * baseHeight;
-            if (Double.isNaN(block.rectangle.height) || Double.isInfinite(block.rectangle.height)) {
-                block.rectangle.height = 0;
+            height[block] = (centralWeight / (centralWeight + blocks.fullWeight[bottom])) * baseHeight;
+            if (Double.isNaN(height[block]) || Double.isInfinite(height[block])) {
+                height[block] = 0;
             }
 
             // B coordinates
-            block.bottom.rectangle.x = block.rectangle.x;
-            block.bottom.rectangle.width = block.rectangle.width;
-            block.bottom.rectangle.y = block.rectangle.y + block.rectangle.height;
-            block.bottom.rectangle.height = baseHeight - block.rectangle.height;
-
-            computeCoordinates(block.bottom, revision);
+            x[bottom] = x[block];
+            width[bottom] = width[block];
+            y[bottom] = y[block] + height[block];
+            height[bottom] = baseHeight - height[block];
         }
 
-        if (block.central != null) {
-            block.central.rectangle = new Rectangle(block.rectangle.x, block.rectangle.y, block.rectangle.width, block.rectangle.height);
-            computeCoordinates(block.central, revision);
+        if (central != NONE) {
+            x[central] = x[block];
+            y[central] = y[block];
+            width[central] = width[block];
+            height[central] = height[block];
         }
     }
 
     public void addItem(Entity entity) {
-        if (origin == null) {
-            origin = new Block(entity);
+        Metrics.Timer timer = metrics.start(Metrics.Phase.INSERTION);
+        metrics.count(Metrics.Counter.INSERTIONS, 1);
+        weightsRevision = -1;
+        int block = blocks.addBlock(entity);
+        indexBlock(block);
+
+        if (origin == NONE) {
+            origin = block;
         } else {
-            Block receiver = findWorstAspectRatioBlock(origin);
+            if (!aspectRatiosValid) {
+                int count = blocks.preOrder(origin);
+                metrics.count(Metrics.Counter.BLOCKS_VISITED, count);
+                updateWorstAspectRatios(blocks.getPreOrder(), count);
+            }
+            int receiver = blocks.worstBlock[origin];
+            aspectRatiosValid = false;
+            insertBlock(receiver, block);
+        }
+        metrics.stop(timer);
+    }
 
-            if (receiver.rectangle.width > receiver.rectangle.height + 0.0001) {
-                if (receiver.right == null) {
-                    receiver.right = new Block(entity);
-                    // System.out.println("Right insert " + receiver.right.id + " into " + receiver.id);
+    // Places the block next to the receiver, on its longer side
+    private void insertBlock(int receiver, int block) {
+        if (blocks.width[receiver] > blocks.height[receiver] + 0.0001) {
+            if (blocks.right[receiver] == NONE) {
+                blocks.setRight(receiver, block);
+            } else {
+                int central = blocks.central[receiver];
+                if (central == NONE) {
+                    central = moveWeightToCentral(receiver);
+                    blocks.setRight(central, block);
                 } else {
-                    if (receiver.central == null) {
-                        receiver.central = new Block(receiver.id, receiver.weightList);
-                        receiver.central.right = new Block(entity);
-                        // Reset upper level
-                        receiver.id = null;
-                        receiver.weightList = new ArrayList<>();
+                    if (blocks.right[central] == NONE) {
+                        blocks.setRight(central, block);
                     } else {
-                        if (receiver.central.right == null) {
-                            receiver.central.right = new Block(entity);
-                        } else {
-                            // System.out.print("WEIRD CENTRAL RIGHT INSERT. ");
-                            Block temp = receiver.central.right;
-                            receiver.central.right = new Block(entity);
-                            receiver.central.right.right = temp;
-                        }
+                        int temp = blocks.right[central];
+                        blocks.setRight(central, block);
+                        blocks.setRight(block, temp);
                     }
-                    // System.out.println("Special Right insert " + receiver.central.right.id + " into " + receiver.central);
                 }
+            }
+        } else {
+            if (blocks.bottom[receiver] == NONE) {
+                blocks.setBottom(receiver, block);
             } else {
-                if (receiver.bottom == null) {
-                    receiver.bottom = new Block(entity);
-                    // System.out.println("Bottom insert " + receiver.bottom.id + " into " + receiver.id);
+                int central = blocks.central[receiver];
+                if (central == NONE) {
+                    central = moveWeightToCentral(receiver);
+                    blocks.setBottom(central, block);
                 } else {
-                    if (receiver.central == null) {
-                        receiver.central = new Block(receiver.id, receiver.weightList);
-                        receiver.central.bottom = new Block(entity);
-                        // Reset upper level
-                        receiver.id = null;
-                        receiver.weightList = new ArrayList<>();
+                    if (blocks.bottom[central] == NONE) {
+                        blocks.setBottom(central, block);
                     } else {
-                        if (receiver.central.bottom == null) {
-                            receiver.central.bottom = new Block(entity);
-                        } else {
-                            // System.out.print("WEIRD CENTRAL BOTTOM INSERT. ");
-                            Block temp = receiver.central.bottom;
-                            receiver.central.bottom = new Block(entity);
-                            receiver.central.bottom.bottom = temp;
-                        }
+                        int temp = blocks.bottom[central];
+                        blocks.setBottom(central, block);
+                        blocks.setBottom(block, temp);
                     }
-                    // System.out.println("Special Bottom insert " + receiver.central.bottom.id + " into " + receiver.central);
                 }
             }
         }
     }
 
-    private Block findWorstAspectRatioBlock(Block block) {
-        // Find worst aspect ratio block inside the argument block
-        Block bestCandidate = block;
-        double worstAR = block.rectangle.getAspectRatio();
+    // The receiver's own weight moves to a new central block, so it can hold more blocks
+    private int moveWeightToCentral(int receiver) {
+        int central = blocks.addBlock(blocks.id[receiver], blocks.weights[receiver], blocks.row[receiver]);
+        indexBlock(central);
+        blocks.setCentral(receiver, central);
+        // Reset upper level
+        blocks.clearWeight(receiver);
+        return central;
+    }
 
-        if (block.central != null) {
-            Block temp = findWorstAspectRatioBlock(block.central);
-            if (temp != null && temp.rectangle.getAspectRatio() < worstAR) {
-                bestCandidate = temp;
-                worstAR = temp.rectangle.getAspectRatio();
+    // Tournament step: the worst block of a subtree is the block itself or the worst block of its
+    // central, right or bottom subtree, preferring them in that order on ties, which is the first
+    // worst block in pre-order. Walking the pre-order backwards settles children first.
+    private void updateWorstAspectRatios(int[] preOrder, int count) {
+        for (int i = count - 1; i >= 0; --i) {
+            int block = preOrder[i];
+            int bestCandidate = block;
+            double worstAR = blocks.getAspectRatio(block);
+
+            int central = blocks.central[block], right = blocks.right[block], bottom = blocks.bottom[block];
+            if (central != NONE && blocks.worstAspectRatio[central] < worstAR) {
+                bestCandidate = blocks.worstBlock[central];
+                worstAR = blocks.worstAspectRatio[central];
             }
-        }
 
-        if (block.right != null) {
-            Block temp = findWorstAspectRatioBlock(block.right);
-            if (temp != null && temp.rectangle.getAspectRatio() < worstAR) {
-                bestCandidate = temp;
-                worstAR = temp.rectangle.getAspectRatio();
+            if (right != NONE && blocks.worstAspectRatio[right] < worstAR) {
+                bestCandidate = blocks.worstBlock[right];
+                worstAR = blocks.worstAspectRatio[right];
             }
-        }
 
-        if (block.bottom != null) {
-            Block temp = findWorstAspectRatioBlock(block.bottom);
-            if (temp != null && temp.rectangle.getAspectRatio() < worstAR) {
-                bestCandidate = temp;
+            if (bottom != NONE && blocks.worstAspectRatio[bottom] < worstAR) {
+                bestCandidate = blocks.worstBlock[bottom];
+                worstAR = blocks.worstAspectRatio[bottom];
             }
+
+            blocks.worstBlock[block] = bestCandidate;
+            blocks.worstAspectRatio[block] = worstAR;
         }
-        return bestCandidate;
+        aspectRatiosValid = true;
     }
 
-    public void addTreemap(Treemap newTreemap) {
-        this.treemapList.add(newTreemap);
+    // Writes this treemap and its nested ones for a checkpoint, see BlockArena.write
+    public void write(DataOutputStream out) throws IOException {
+        out.writeUTF(id);
+        out.writeDouble(baseRectangle.x);
+        out.writeDouble(baseRectangle.y);
+        out.writeDouble(baseRectangle.width);
+        out.writeDouble(baseRectangle.height);
+        out.writeInt(origin);
+        out.writeInt(weightsRevision);
+        out.writeBoolean(aspectRatiosValid);
+        blocks.write(out);
+        out.writeInt(treemapList.size());
+        for (Treemap treemap : treemapList) {
+            treemap.write(out);
+        }
     }
 
-    public Block findBlock(Block block, String itemId) {
+    // Rebuilds a treemap written by write, for the entity of the same id among the given ones.
+    // Directory ids are only unique among siblings, so blocks and nested treemaps are looked up
+    // among the children of this treemap's entity.
+    public static Treemap read(DataInputStream in, Map<String, Entity> entities, LayoutOptions options) throws IOException {
+        String id = in.readUTF();
+        Rectangle rectangle = new Rectangle(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+        Entity entity = entities.get(id);
+        if (entity == null) {
+            throw new IOException("Checkpoint treemap has no matching entity - " + id);
+        }
 
-        if (block == null) {
-            return null;
+        Map<String, Entity> children = new HashMap<>();
+        for (Entity child : entity.getChildren()) {
+            children.putIfAbsent(child.getId(), child);
         }
 
-        if (block.id != null && block.id.equals(itemId)) {
-            return block;
-        } else {
-            Block found = null;
-            if (block.central != null) {
-                Block temp = findBlock(block.central, itemId);
-                if (temp != null) {
-                    found = temp;
-                }
-            }
-            if (block.right != null) {
-                Block temp = findBlock(block.right, itemId);
-                if (temp != null) {
-                    found = temp;
-                }
-            }
-            if (block.bottom != null) {
-                Block temp = findBlock(block.bottom, itemId);
-                if (temp != null) {
-                    found = temp;
-                }
-            }
-            return found;
+        Treemap treemap = new Treemap(id, entity.getChildren(), rectangle, options);
+        treemap.origin = in.readInt();
+        treemap.weightsRevision = in.readInt();
+        treemap.aspectRatiosValid = in.readBoolean();
+        treemap.blocks = BlockArena.read(in, children);
+        for (int block = 0; block < treemap.blocks.size(); ++block) {
+            treemap.indexBlock(block);
         }
+        int numberOfTreemaps = in.readInt();
+        for (int i = 0; i < numberOfTreemaps; ++i) {
+            treemap.addTreemap(read(in, children, options));
+        }
+        return treemap;
+    }
+
+    public void addTreemap(Treemap newTreemap) {
+        this.treemapList.add(newTreemap);
+        this.treemapIndex.putIfAbsent(newTreemap.id, newTreemap);
     }
-}
 
+    // Registers a block of this treemap so findBlock can reach it by id
+    public void indexBlock(int block) {
+        if (blocks.id[block] != null) {
+            blockIndex.put(blocks.id[block], block);
+        }
+    }
 
+    // Block holding the item, or NONE
+    public int findBlock(String itemId) {
+        return blockIndex.getOrDefault(itemId, NONE);
+    }
+}
@@ -1,65 +1,231 @@
 package com.ufrgs;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import static java.lang.Double.max;
 import static java.lang.Math.pow;
 
-public class TreemapManager {
+// Lays out the revisions of one history in order. Iterating yields the rectangles of each
+// revision as an in-memory snapshot, run hands them to a sink instead. Nothing touches the
+// filesystem except checkpoints, when a checkpoint directory is set. See LayoutEngine.
+// A streamed revision that can't be read or a checkpoint that can't be written ends the
+// iteration with an UncheckedIOException, and run with its IOException.
+public class TreemapManager implements Iterator<RectangleSnapshot>, AutoCloseable {
 
+    private final LayoutOptions options;
+    private final Metrics metrics;
     private Rectangle baseRectangle;
     private Entity root;
     private Treemap rootTreemap;
     private double normalizer = 0;
     private int revision = 0;
     private int nRevisions;
+    private ForkJoinPool layoutPool;
+    private StreamingParser parser; // Null unless revisions are streamed
+    private boolean started = false;
+    private boolean finished = false;
+    private RectangleSnapshot pending; // Laid out but not handed out yet
 
 
-    TreemapManager(Entity root, Rectangle baseRectangle) {
-        // Clean/create output directories
-        File[] files = new File(Main.outputDir).listFiles();
-        if (files != null && files.length > 0) {
-            Arrays.stream(files).forEach(File::delete);
-        }
-        new File(Main.outputDir).mkdirs(); // In case path doesn't exist
+    public TreemapManager(Entity root, Rectangle baseRectangle, LayoutOptions options) {
+        this(root, baseRectangle, null, options);
+    }
 
+    // Lays out every revision as the parser reads it, see StreamingParser
+    public TreemapManager(StreamingParser parser, Rectangle baseRectangle, LayoutOptions options) {
+        this(parser.getRoot(), baseRectangle, parser, options);
+    }
+
+    private TreemapManager(Entity root, Rectangle baseRectangle, StreamingParser parser, LayoutOptions options) {
         this.root = root;
         this.baseRectangle = baseRectangle;
-        this.nRevisions = root.getNumberOfRevisions();
+        this.parser = parser;
+        this.options = options;
+        this.metrics = options.metrics;
+        this.nRevisions = Math.min(root.getNumberOfRevisions() - 1, options.lastRevision) + 1;
+        if (options.layoutThreads > 1) {
+            this.layoutPool = new ForkJoinPool(options.layoutThreads);
+        }
+    }
+
+    // Lays out the remaining revisions and hands them to the sink, possibly on writer threads
+    // while layout goes on, then closes the sink. Stops at the first failed write.
+    public void run(RectangleSink sink) throws IOException {
+        try (RectangleWriter writer = new RectangleWriter(sink, options.writerThreads, metrics)) {
+            while (hasNext()) {
+                writer.write(next());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
 
-        while(root.getWeight(this.revision) == 0.0) {
-            writeRectanglesToFile(this.rootTreemap, this.revision);
+    @Override
+    public boolean hasNext() {
+        while (this.pending == null && !this.finished) {
+            try {
+                advance();
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException(e);
+            }
+        }
+        return this.pending != null;
+    }
+
+    @Override
+    public RectangleSnapshot next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        RectangleSnapshot snapshot = this.pending;
+        this.pending = null;
+        return snapshot;
+    }
+
+    // Ends the iteration and stops the layout threads, for callers that stop early
+    @Override
+    public void close() {
+        this.finished = true;
+        if (this.layoutPool != null) {
+            this.layoutPool.shutdown();
+        }
+    }
+
+    Treemap getRootTreemap() {
+        return rootTreemap;
+    }
+
+    // Lays out one revision. Revisions before the first requested one leave no snapshot.
+    private void advance() throws IOException {
+        if (!this.started) {
+            this.started = true;
+            if (resume(options.firstRevision)) {
+                return;
+            }
+            if (this.parser != null && !this.parser.nextRevision()) {
+                close();
+                return;
+            }
+            layoutFirstRevision();
+        } else if (!hasNextRevision()) {
+            close();
+        } else if (this.rootTreemap == null) {
             this.revision += 1;
+            layoutFirstRevision();
+        } else {
+            nextRevision();
+        }
+    }
+
+    // Revisions before the root has any weight are empty, the first one with weight gets the
+    // initial layout
+    private void layoutFirstRevision() throws IOException {
+        if (root.getWeight(this.revision) == 0.0) {
+            takeSnapshot(this.rootTreemap, this.revision);
+            return;
         }
 
         // = new Treemap(root.getChildren(), this.baseRectangle.copy());
+        metrics.startRevision(this.revision);
+        Metrics.Timer timer = metrics.start(Metrics.Phase.SQUARIFY, this.revision);
         Rectangle rectangle = this.baseRectangle.copy();
         this.rootTreemap = squarifiedToLT("", root.getChildren(), rectangle);
+        metrics.stop(timer);
 //
 ////        this.rootTreemap.origin.baseRectangle = baseRectangle;
 //        this.rootTreemap.computeTreemap(this.revision);
 
-        writeRectanglesToFile(this.rootTreemap, this.revision);
+        takeSnapshot(this.rootTreemap, this.revision);
+        metrics.endRevision();
+        writeCheckpoint();
+    }
 
-        while (this.revision < this.nRevisions - 1) {
-            nextRevision();
+    // Streamed revisions are read here, so the weights move on to revision + 1
+    private boolean hasNextRevision() throws IOException {
+        if (this.parser != null) {
+            return this.revision < options.lastRevision && this.parser.nextRevision();
+        }
+        return this.revision < this.nRevisions - 1;
+    }
+
+    // Restores the latest checkpoint at or before the revision, the revisions after it are
+    // replayed without snapshots. False if there is no checkpoint to start from.
+    private boolean resume(int firstRevision) {
+        if (options.checkpointDir == null || firstRevision == 0 || this.parser != null) {
+            return false;
+        }
+        Metrics.Timer timer = metrics.start(Metrics.Phase.CHECKPOINT, firstRevision);
+        Checkpoint checkpoint = Checkpoint.readLatest(options.checkpointDir, firstRevision, this.baseRectangle, this.root, options);
+        metrics.stop(timer);
+        if (checkpoint == null) {
+            return false;
+        }
+        this.rootTreemap = checkpoint.rootTreemap;
+        this.revision = checkpoint.revision;
+        if (this.revision == firstRevision) {
+            takeSnapshot(this.rootTreemap, this.revision);
+        }
+        return true;
+    }
+
+    private void writeCheckpoint() throws IOException {
+        if (options.checkpointDir != null && this.revision % options.checkpointInterval == 0) {
+            Metrics.Timer timer = metrics.start(Metrics.Phase.CHECKPOINT, this.revision);
+            Checkpoint.write(options.checkpointDir, this.revision, this.baseRectangle, this.rootTreemap, options);
+            metrics.stop(timer);
         }
     }
 
-    public void nextRevision() {
+    private void nextRevision() throws IOException {
         revision++;
+        metrics.startRevision(this.revision);
+        Metrics.Timer timer = metrics.start(Metrics.Phase.LAYOUT, this.revision);
+
+        if (this.parser != null) {
+            addStreamedEntities();
+        }
 
         // Rearrange cell with new weights
         // this.rootTreemap.origin.rectangle = this.baseRectangle.copy();
-        this.rootTreemap.computeTreemap(this.revision);
+        if (this.layoutPool != null) {
+            // Children treemaps are forked inside the pool
+            int revision = this.revision;
+            this.layoutPool.invoke(ForkJoinTask.adapt(() -> this.rootTreemap.computeTreemap(revision)));
+        } else {
+            this.rootTreemap.computeTreemap(this.revision);
+        }
+        metrics.stop(timer);
 
-        writeRectanglesToFile(this.rootTreemap, this.revision);
+        takeSnapshot(this.rootTreemap, this.revision);
+        metrics.endRevision();
+        writeCheckpoint();
+    }
+
+    // Entities that showed up in this revision are handed to the treemap of their parent, the
+    // treemaps of new parents pick up their children when they are created. The treemaps above
+    // count them too, their sizes decide which ones are laid out in parallel.
+    private void addStreamedEntities() {
+        List<Entity> ancestors = new ArrayList<>();
+        for (Entity entity : this.parser.getAddedEntities()) {
+            ancestors.clear();
+            for (Entity parent = this.parser.getParent(entity); parent != root; parent = this.parser.getParent(parent)) {
+                ancestors.add(parent);
+            }
+
+            Treemap treemap = this.rootTreemap;
+            for (int i = ancestors.size() - 1; i >= 0 && treemap != null; --i) {
+                treemap.addNestedEntities(entity.getSubtreeSize());
+                treemap = treemap.getTreemap(ancestors.get(i).getId());
+            }
+            if (treemap != null) {
+                treemap.addEntity(entity, this.revision);
+            }
+        }
     }
 
     private Treemap squarifiedToLT(String treemapId, List<Entity> originalEntityList, Rectangle rectangle) {
@@ -75,33 +241,40 @@ public class TreemapManager {
         entityList.sort(Comparator.comparing(o -> ((Entity) o).getWeight(this.revision)).reversed());
         normalize(entityList, rectangle.width * rectangle.height);
 
-        // Make a copy of the entities we are adding
-        List<Entity> entityListCopy = new ArrayList<>();
-        for (Entity entity : entityList) {
-            entityListCopy.add(entity);
-        }
-
         // Initialize treemap
-        Treemap treemap = new Treemap(treemapId, originalEntityList, rectangle.copy());
-        Block outsideBlock = new Block();
+        Treemap treemap = new Treemap(treemapId, originalEntityList, rectangle.copy(), options);
+        BlockArena blocks = treemap.blocks;
+        int outsideBlock = blocks.addBlock();
         treemap.origin = outsideBlock;
 
         List<Entity> currentRow = new ArrayList<>();
+        // Running statistics of the normalized weights in the current row
+        double rowMin = Double.MAX_VALUE, rowMax = Double.MIN_VALUE, rowSum = 0;
+        int next = 0; // Entities before this one are already placed or in the current row
 
         while (true) {
 
             boolean verticalCut = rectangle.width > rectangle.height;
 
-            if (!entityList.isEmpty() && improvesRatio(currentRow, getNormalizedWeight(entityList.get(0)), rectangle.getShortEdge())) {
-                currentRow.add(entityList.get(0));
-                entityList.remove(0);
+            double nextWeight = next < entityList.size() ? getNormalizedWeight(entityList.get(next)) : 0;
+            if (next < entityList.size() && improvesRatio(currentRow.size(), rowMin, rowMax, rowSum, nextWeight, rectangle.getShortEdge())) {
+                currentRow.add(entityList.get(next++));
+                if (nextWeight > rowMax) {
+                    rowMax = nextWeight;
+                }
+                if (nextWeight < rowMin) {
+                    rowMin = nextWeight;
+                }
+                rowSum += nextWeight;
 
             } else {
                 // Convert current row of entities into blocks
                 double area = 0;
-                List<Block> blockList = new ArrayList<>();
+                List<Integer> blockList = new ArrayList<>();
                 for (Entity entity : currentRow) {
-                    blockList.add(new Block(entity));
+                    int block = blocks.addBlock(entity);
+                    treemap.indexBlock(block);
+                    blockList.add(block);
                     area += entity.getWeight(0);
                 }
                 area *= normalizer;
@@ -109,15 +282,15 @@ public class TreemapManager {
                 // Connect blocks horizontally or vertically depending on the squarified layout
                 if (verticalCut) {
                     for (int i = 0; i < blockList.size() - 1; ++i) {
-                        blockList.get(i).addBottomBlock(blockList.get(i + 1));
+                        blocks.setBottom(blockList.get(i), blockList.get(i + 1));
                     }
                 } else {
                     for (int i = 0; i < blockList.size() - 1; ++i) {
-                        blockList.get(i).addRightBlock(blockList.get(i + 1));
+                        blocks.setRight(blockList.get(i), blockList.get(i + 1));
                     }
                 }
                 // Connect "chain" to outside block
-                outsideBlock.addCentralBlock(blockList.get(0));
+                blocks.setCentral(outsideBlock, blockList.get(0));
 
                 // Recompute remaining baseRectangle
                 if (verticalCut) {
@@ -130,18 +303,21 @@ public class TreemapManager {
 
                 // Reset outside block for new iteration
                 if (verticalCut) {
-                    Block newOutside = new Block();
-                    outsideBlock.addRightBlock(newOutside);
+                    int newOutside = blocks.addBlock();
+                    blocks.setRight(outsideBlock, newOutside);
                     outsideBlock = newOutside;
                 } else {
-                    Block newOutside = new Block();
-                    outsideBlock.addBottomBlock(newOutside);
+                    int newOutside = blocks.addBlock();
+                    blocks.setBottom(outsideBlock, newOutside);
                     outsideBlock = newOutside;
                 }
                 currentRow.clear();
+                rowMin = Double.MAX_VALUE;
+                rowMax = Double.MIN_VALUE;
+                rowSum = 0;
             }
 
-            if(entityList.isEmpty() && currentRow.isEmpty()) {
+            if(next == entityList.size() && currentRow.isEmpty()) {
                 break;
             }
         }
@@ -150,9 +326,9 @@ public class TreemapManager {
         treemap.computeTreemap(this.revision);
 
         // Make recursive calls
-        for (Entity entity : entityListCopy) {
+        for (Entity entity : entityList) {
             if (entity.getChildren().size() > 0 && entity.getWeight(0) > 0.0) {
-                Rectangle allowedArea = treemap.findBlock(treemap.origin, entity.getId()).rectangle.copy();
+                Rectangle allowedArea = blocks.getRectangle(treemap.findBlock(entity.getId()));
                 // Treemap newTreemap = new Treemap(entity.getId(), entity.getChildren(), allowedArea);
                 Treemap newTreemap = squarifiedToLT(entity.getId(), entity.getChildren(), allowedArea);
                 treemap.addTreemap(newTreemap);
@@ -161,31 +337,17 @@ public class TreemapManager {
         return treemap;
     }
 
-    // Test if adding a new entity to row improves ratios (get closer to 1)
-    boolean improvesRatio(List<Entity> currentRow, double nextEntity, double length) {
+    // Test if adding a new entity to row improves ratios (get closer to 1). The row is given by
+    // its size and the min, max and sum of its normalized weights, the sum added up in row order.
+    static boolean improvesRatio(int rowSize, double minCurrent, double maxCurrent, double sumCurrent,
+                                 double nextEntity, double length) {
 
-        if (currentRow.size() == 0) {
+        if (rowSize == 0) {
             return true;
         }
 
-        double minCurrent = Double.MAX_VALUE, maxCurrent = Double.MIN_VALUE;
-        for (Entity entity : currentRow) {
-            if (getNormalizedWeight(entity) > maxCurrent) {
-                maxCurrent = getNormalizedWeight(entity);
-            }
-
-            if (getNormalizedWeight(entity) < minCurrent) {
-                minCurrent = getNormalizedWeight(entity);
-            }
-        }
-
         double minNew = (nextEntity < minCurrent) ? nextEntity : minCurrent;
         double maxNew = (nextEntity > maxCurrent) ? nextEntity : maxCurrent;
-
-        double sumCurrent = 0;
-        for (Entity entity : currentRow) {
-            sumCurrent += getNormalizedWeight(entity);
-        }
         double sumNew = sumCurrent + nextEntity;
 
         double currentRatio = max(pow(length, 2) * maxCurrent / pow(sumCurrent, 2),
@@ -208,61 +370,49 @@ public class TreemapManager {
         return entity.getWeight(this.revision) * this.normalizer;
     }
 
-    private void writeRectanglesToFile(Treemap treemap, int revision) {
+    // Copies the rectangles of the revision out of the treemaps into the pending snapshot
+    private void takeSnapshot(Treemap treemap, int revision) {
 
-        List<String> lines = new ArrayList<>();
+        // Revisions replayed to reach the first requested one are skipped
+        if (revision < options.firstRevision) {
+            return;
+        }
+
+        Metrics.Timer timer = metrics.start(Metrics.Phase.SNAPSHOT, revision);
+        RectangleSnapshot snapshot = new RectangleSnapshot(revision);
 
         if (treemap != null) {
             Stack stack = new Stack<Treemap>();
             stack.push(treemap);
             while (!stack.empty()) {
                 Treemap tm = (Treemap) stack.pop();
-
-                // Get parent ids
-                List<String> parentIds = new ArrayList<>();
-                for (Treemap childTreemap : tm.treemapList) {
-                    parentIds.add(childTreemap.id);
-                }
-
-                addLine(lines, tm.origin, parentIds);
+                addLines(snapshot, tm);
                 for (Treemap childTreemap : tm.treemapList) {
                     stack.push(childTreemap);
                 }
             }
         }
 
-        lines.sort(String.CASE_INSENSITIVE_ORDER);
-//        for (String line : lines) {
-//            System.out.println(line);
-//        }
-
-        Path file = Paths.get(String.format("%s/t%d.rect", Main.outputDir, revision));
-
-        try {
-            Files.write(file, lines, Charset.forName("UTF-8"));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        metrics.stop(timer);
+        metrics.count(Metrics.Counter.RECTANGLES_WRITTEN, snapshot.size());
+        this.pending = snapshot;
     }
 
-    private void addLine(List<String> lines, Block block, List<String> parentIds) {
+    // Items with a nested treemap are covered by its rectangles, removed items weigh nothing
+    private void addLines(RectangleSnapshot snapshot, Treemap treemap) {
 
-        if (block.id != null &&
-                !parentIds.contains(block.id) &&
-                block.weightList.get(this.revision) > 0.0) {
+        BlockArena blocks = treemap.blocks;
+        int count = blocks.preOrder(treemap.origin);
+        int[] preOrder = blocks.getPreOrder();
 
-            lines.add(String.format(Locale.ROOT, "%s,%.10f,%.10f,%.10f,%.10f",
-                      block.id, block.rectangle.x, block.rectangle.y, block.rectangle.width, block.rectangle.height));
-        }
+        for (int i = 0; i < count; ++i) {
+            int block = preOrder[i];
+            if (blocks.id[block] != null &&
+                    treemap.getTreemap(blocks.id[block]) == null &&
+                    blocks.getWeight(block, snapshot.getRevision()) > 0.0) {
 
-        if(block.central != null) {
-            addLine(lines, block.central, parentIds);
-        }
-        if(block.right != null) {
-            addLine(lines, block.right, parentIds);
-        }
-        if(block.bottom != null) {
-            addLine(lines, block.bottom, parentIds);
+                snapshot.add(blocks.id[block], blocks.x[block], blocks.y[block], blocks.width[block], blocks.height[block]);
+            }
         }
     }
 
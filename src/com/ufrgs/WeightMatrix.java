@@ -0,0 +1,99 @@
+package com.ufrgs;
+
+import java.util.Arrays;
+
+// Revision weights of every entity, stored row by row in primitive pages.
+// Each entity owns one row and reads/writes its cells by (row, revision).
+public class WeightMatrix implements WeightStore {
+
+    private static final int PAGE_CELLS = 1 << 20;
+
+    private final int numberOfRevisions;
+    private final int rowsPerPage;
+    private double[][] pages = new double[0][];
+    private int numberOfRows = 0;
+
+    public WeightMatrix(int numberOfRevisions) {
+        this.numberOfRevisions = numberOfRevisions;
+        this.rowsPerPage = Math.max(1, PAGE_CELLS / Math.max(1, numberOfRevisions));
+    }
+
+    @Override
+    public int getNumberOfRevisions() {
+        return numberOfRevisions;
+    }
+
+    @Override
+    public int getNumberOfRows() {
+        return numberOfRows;
+    }
+
+    @Override
+    public int addRow() {
+        int row = numberOfRows++;
+        int page = row / rowsPerPage;
+        int cellsNeeded = (row % rowsPerPage + 1) * numberOfRevisions;
+        if (page == pages.length) {
+            pages = Arrays.copyOf(pages, page + 1);
+            pages[page] = new double[cellsNeeded];
+        } else if (pages[page].length < cellsNeeded) {
+            // Pages grow geometrically up to their full size
+            int rows = Math.min(rowsPerPage, 2 * (row % rowsPerPage));
+            pages[page] = Arrays.copyOf(pages[page], Math.max(cellsNeeded, rows * numberOfRevisions));
+        }
+        return row;
+    }
+
+    @Override
+    public double get(int row, int revision) {
+        return pages[row / rowsPerPage][(row % rowsPerPage) * numberOfRevisions + revision];
+    }
+
+    @Override
+    public void set(int row, int revision, double weight) {
+        pages[row / rowsPerPage][(row % rowsPerPage) * numberOfRevisions + revision] = weight;
+    }
+
+    @Override
+    public void addRow(int source, int target) {
+        double[] sourcePage = pages[source / rowsPerPage];
+        double[] targetPage = pages[target / rowsPerPage];
+        int sourceOffset = (source % rowsPerPage) * numberOfRevisions;
+        int targetOffset = (target % rowsPerPage) * numberOfRevisions;
+        for (int revision = 0; revision < numberOfRevisions; ++revision) {
+            targetPage[targetOffset + revision] += sourcePage[sourceOffset + revision];
+        }
+    }
+
+    @Override
+    public int getAdditionRevision(int row) {
+        for (int revision = 0; revision < numberOfRevisions; ++revision) {
+            if (get(row, revision) > 0.0) {
+                return revision;
+            }
+        }
+        return numberOfRevisions;
+    }
+
+    @Override
+    public int getRemovalRevision(int row) {
+        for (int revision = numberOfRevisions - 1; revision >= 0; --revision) {
+            if (get(row, revision) > 0.0) {
+                return revision + 1;
+            }
+        }
+        return numberOfRevisions;
+    }
+
+    @Override
+    public String rowToString(int row) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int revision = 0; revision < numberOfRevisions; ++revision) {
+            if (revision > 0) {
+                builder.append(", ");
+            }
+            builder.append(get(row, revision));
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,27 @@
+package com.ufrgs;
+
+// Storage for the revision weights of every entity. Each entity owns one row.
+public interface WeightStore {
+
+    int getNumberOfRevisions();
+
+    int getNumberOfRows();
+
+    // Allocates a zero filled row and returns its index
+    int addRow();
+
+    double get(int row, int revision);
+
+    void set(int row, int revision, double weight);
+
+    // Accumulates every revision of the source row into the target row
+    void addRow(int source, int target);
+
+    // First revision with a positive weight, or the number of revisions if there is none
+    int getAdditionRevision(int row);
+
+    // Revision following the last positive weight, or the number of revisions if there is none
+    int getRemovalRevision(int row);
+
+    String rowToString(int row);
+}
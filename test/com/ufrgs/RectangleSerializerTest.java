@@ -0,0 +1,151 @@
+package com.ufrgs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+// Property tests of RectangleSerializer against the String.format and List.sort code it
+// replaced: random and near rounding tie values through formatFixed, and random snapshots
+// through serialize. Fails with an AssertionError that names the seed and the input.
+//
+// Build and run from the project root, after compiling src to out/production/squarified-git:
+// javac --release 8 -cp out/production/squarified-git -d out/test/squarified-test $(find test -name '*.java')
+// java -cp out/production/squarified-git:out/test/squarified-test com.ufrgs.RectangleSerializerTest [seed] [cases]
+public class RectangleSerializerTest {
+
+    // Besides ASCII, letters whose case mappings are not one to one, an uncased character outside
+    // the BMP and a Deseret letter pair, which has case. Ids are decoded from UTF-8, so they never
+    // hold a lone surrogate.
+    private static final String[] ID_CHARS = {"a", "b", "A", "B", "z", "Z", "_", "-", ".", ",", "/", "0", "9",
+            "\u00e9", "\u00c9", "\u00df", "\u0130", "\u0131", "\u03a3", "\u03c3", "\u03c2", "\ud83d\ude00",
+            "\ud801\udc00", "\ud801\udc28"};
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        int cases = args.length > 1 ? Integer.parseInt(args[1]) : 500_000;
+        System.out.println("seed " + seed);
+
+        formatsSpecialValues();
+        formatsRandomValues(new Random(seed), cases);
+        formatsNearTies(new Random(seed), cases);
+        sortsLikeCaseInsensitiveOrder(new Random(seed), cases / 1000);
+        System.out.println("ok");
+    }
+
+    static void formatsSpecialValues() {
+        double[] values = {0.0, -0.0, 1.0, -1.0, 0.5, 0.00000000005, 0.00000000015, -0.00000000005,
+                0.99999999995, 9.99999999995, 1e-11, 5e-11, 4.9999999999e-11, Double.MIN_VALUE,
+                Double.MIN_NORMAL, Double.MAX_VALUE, -Double.MAX_VALUE, 1 << 29, (1 << 29) - 0.5,
+                Math.nextDown(1 << 29), Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (double value : values) {
+            checkFormat(value, "special value");
+        }
+    }
+
+    // Uniform in magnitude, typical canvas coordinates and raw bit patterns
+    static void formatsRandomValues(Random random, int cases) {
+        for (int i = 0; i < cases; ++i) {
+            double value;
+            switch (i % 4) {
+                case 0:
+                    value = random.nextDouble() * 1000;
+                    break;
+                case 1:
+                    value = (random.nextDouble() - 0.5) * Math.pow(2, random.nextInt(60) - 30);
+                    break;
+                case 2:
+                    value = random.nextInt(1000000) / Math.pow(10, random.nextInt(12));
+                    break;
+                default:
+                    value = Double.longBitsToDouble(random.nextLong());
+            }
+            checkFormat(value, "random value");
+        }
+    }
+
+    // Values whose decimal representation ends in a 5 at the 11th fraction digit, and their
+    // neighbours one ulp away, where the exact binary value and Java's rounding disagree
+    static void formatsNearTies(Random random, int cases) {
+        for (int i = 0; i < cases; ++i) {
+            long integer = random.nextInt(4) == 0 ? random.nextInt(1 << 29) : random.nextInt(1000);
+            String fraction = String.format(Locale.ROOT, "%010d", (long) (random.nextDouble() * 1e10));
+            double tie = Double.parseDouble(integer + "." + fraction + "5");
+            if (random.nextBoolean()) {
+                tie = -tie;
+            }
+            checkFormat(tie, "near tie");
+            checkFormat(Math.nextUp(tie), "near tie");
+            checkFormat(Math.nextDown(tie), "near tie");
+        }
+    }
+
+    // Snapshots of random ids, many equal but for case, serialized by one reused serializer
+    static void sortsLikeCaseInsensitiveOrder(Random random, int cases) {
+        RectangleSerializer serializer = new RectangleSerializer();
+        for (int i = 0; i < cases; ++i) {
+            int size = random.nextInt(4) == 0 ? random.nextInt(2000) : random.nextInt(20);
+            RectangleSnapshot snapshot = new RectangleSnapshot(i);
+            List<String> ids = new ArrayList<>();
+            for (int k = 0; k < size; ++k) {
+                String id = !ids.isEmpty() && random.nextInt(4) == 0 ? changeCase(ids.get(random.nextInt(ids.size())), random) : randomId(random);
+                ids.add(id);
+                double[] values = new double[4];
+                for (int v = 0; v < 4; ++v) {
+                    values[v] = random.nextInt(3) == 0 ? random.nextInt(10) : random.nextDouble() * Math.pow(10, random.nextInt(5));
+                }
+                snapshot.add(id, values[0], values[1], values[2], values[3]);
+            }
+
+            List<String> lines = new ArrayList<>();
+            for (int k = 0; k < size; ++k) {
+                lines.add(String.format(Locale.ROOT, "%s,%.10f,%.10f,%.10f,%.10f", snapshot.ids[k],
+                        snapshot.x[k], snapshot.y[k], snapshot.width[k], snapshot.height[k]));
+            }
+            lines.sort(String.CASE_INSENSITIVE_ORDER);
+            StringBuilder expected = new StringBuilder();
+            for (String line : lines) {
+                expected.append(line).append(System.lineSeparator());
+            }
+
+            serializer.serialize(snapshot);
+            byte[] actual = Arrays.copyOf(serializer.getBuffer(), serializer.getLength());
+            if (!Arrays.equals(actual, expected.toString().getBytes(StandardCharsets.UTF_8))) {
+                throw new AssertionError("Lines out of order for ids " + ids + ":\n"
+                        + new String(actual, StandardCharsets.UTF_8) + "expected:\n" + expected);
+            }
+        }
+    }
+
+    private static void checkFormat(double value, String kind) {
+        byte[] out = new byte[RectangleSerializer.MAX_NUMBER_LENGTH];
+        String actual = new String(out, 0, RectangleSerializer.formatFixed(value, out, 0), StandardCharsets.US_ASCII);
+        String expected = String.format(Locale.ROOT, "%.10f", value);
+        if (!actual.equals(expected)) {
+            throw new AssertionError(kind + " " + value + " (bits " + Long.toHexString(Double.doubleToRawLongBits(value))
+                    + ") formatted as " + actual + ", expected " + expected);
+        }
+    }
+
+    private static String randomId(Random random) {
+        StringBuilder id = new StringBuilder();
+        int length = 1 + random.nextInt(6);
+        for (int i = 0; i < length; ++i) {
+            id.append(ID_CHARS[random.nextInt(ID_CHARS.length)]);
+        }
+        return id.toString();
+    }
+
+    private static String changeCase(String id, Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return id.toUpperCase(Locale.ROOT);
+            case 1:
+                return id.toLowerCase(Locale.ROOT);
+            default:
+                return id;
+        }
+    }
+}